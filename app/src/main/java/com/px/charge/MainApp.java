@@ -1,6 +1,7 @@
 package com.px.charge;
 
 import android.Manifest;
+import android.content.ComponentCallbacks2;
 import android.os.Environment;
 import android.support.annotation.RequiresPermission;
 
@@ -26,6 +27,15 @@ public class MainApp extends MyApp {
 
         AccountBook.startUp(this);
     }
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // 界面不可见说明应用退到了后台, 趁这时备份账本
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && AccountBook.get() != null) {
+            AccountBook.get().requestBackup();
+        }
+    }
 
     @Override
     public String getAppName() {
@@ -3,16 +3,26 @@ package com.px.charge.dao;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
-import android.util.Log;
 
+import com.common.database.ArchiveInput;
+import com.common.database.ArchiveOutput;
 import com.common.database.AsyncDatabase;
+import com.common.database.DbUtils;
 import com.common.database.ManagedDatabase;
+import com.common.database.ManagedDatabaseStatement;
+import com.common.database.Migration;
+import com.common.database.RowMapper;
 import com.common.sys.MainThread;
 
 import java.io.File;
-import java.util.Date;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import rx.Observable;
 import rx.Subscriber;
@@ -24,19 +34,82 @@ import rx.schedulers.Schedulers;
  */
 public class AccountBook extends AsyncDatabase {
     // ### 值域 ###
+    private static final int DB_VERSION_SUMMARY = 2;
+    private static final int DB_VERSION_SEARCH = 3;
+    private static final int INSERT_BATCH_SIZE = 500;
+    private static final int SEARCH_CHUNK_SIZE = 100;
+    private static final int MIGRATION_CHUNK_SIZE = 2000;
+    private static final int JOURNAL_OP_ADD = 1;
     private static AccountBook mSingleton = null;
     private Context mContent;
     private final LinkedList<Charge> mChargeList = new LinkedList<Charge>();
     private final LinkedList<AccountBookChangedListener> mListeners = new LinkedList<AccountBookChangedListener>();
+    private final LinkedList<ChargesChangedListener> mChangeListeners = new LinkedList<ChargesChangedListener>();
+    private final ChargeSummaryTable mDailySummary = new ChargeSummaryTable("charge_daily", true);
+    private final ChargeSummaryTable mMonthlySummary = new ChargeSummaryTable("charge_monthly", false);
+    private final Runnable mNotifyBookChanged = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < mListeners.size(); i++) {
+                mListeners.get(i).onAccountBookChanged();
+            }
+        }
+    };
+    // 以下变量只在写线程中使用
+    private final Calendar mWriterCalendar = Calendar.getInstance();
 
     public static interface AccountBookChangedListener {
         void onAccountBookChanged();
     }
+    // 带有具体变更的通知, 界面可以只更新受影响的条目而不必重新加载
+    public static interface ChargesChangedListener {
+        void onChargesChanged(List<ChargeChange> changes);
+    }
 
     // ### 构造函数 ###
     public AccountBook(Context context) {
-        super(Uri.fromFile(new File(context.getDatabasePath("name").getParentFile(), "main.db")).toString());
+        super(Uri.fromFile(new File(context.getDatabasePath("name").getParentFile(), "main.db")).toString(),
+                Uri.fromFile(new File(context.getDatabasePath("name").getParentFile(), "main.db.bak")).toString(), true);
         mContent = context;
+        enableJournal(new File(context.getDatabasePath("name").getParentFile(), "main.journal"));
+
+        registerMigration(new Migration(DB_VERSION_SUMMARY) {
+            @Override
+            protected long migrate(ManagedDatabase db, long progress) {
+                mDailySummary.create(db);
+                mDailySummary.rebuild(db);
+                mMonthlySummary.create(db);
+                mMonthlySummary.rebuild(db);
+                return DONE;
+            }
+        });
+        registerMigration(new Migration(DB_VERSION_SEARCH) {
+            @Override
+            protected long migrate(ManagedDatabase db, long progress) {
+                if (progress == 0) {
+                    db.execSQL("create index if not exists charge_paid_date_index on charge(paid_date)");
+
+                    // 全文索引的docid与charge._id一致, 由触发器保持同步
+                    db.execSQL("create virtual table if not exists charge_fts using fts4(title, description)");
+                    db.execSQL("create trigger if not exists charge_fts_insert after insert on charge begin "
+                            + "insert into charge_fts(docid, title, description) values(new._id, new.title, new.description); end");
+                    db.execSQL("create trigger if not exists charge_fts_delete after delete on charge begin "
+                            + "delete from charge_fts where docid = old._id; end");
+                    db.execSQL("create trigger if not exists charge_fts_update after update of title, description on charge begin "
+                            + "update charge_fts set title = new.title, description = new.description where docid = new._id; end");
+                }
+
+                // 按_id分批回填已有的账目, progress是已回填的最大_id
+                final long lastId = queryLong(db, "select max(_id) from (select _id from charge where _id > ? order by _id limit " + MIGRATION_CHUNK_SIZE + ")",
+                        String.valueOf(progress));
+                if (lastId <= progress) {
+                    return DONE;
+                }
+                db.execSQL("insert into charge_fts(docid, title, description) select _id, title, description from charge where _id > ? and _id <= ?",
+                        new Object[] { progress, lastId });
+                return lastId;
+            }
+        });
     }
 
     // ### 方法 ###
@@ -53,48 +126,202 @@ public class AccountBook extends AsyncDatabase {
     public void addListener(AccountBookChangedListener listener) {
         mListeners.add(listener);
     }
+    public void removeChangeListener(ChargesChangedListener listener) {
+        mChangeListeners.remove(listener);
+    }
+    public void addChangeListener(ChargesChangedListener listener) {
+        mChangeListeners.add(listener);
+    }
 
-    public void add(final String title, final float price, final String des) {
+    // 返回的Future在记账写入日志并同步到磁盘后完成, 之后即使进程被杀死, 这条账目也会在下次启动时写入数据库.
+    public Future<Boolean> add(final String title, final float price, final String des) {
         final Charge charge = new Charge(title, price, des);
         mChargeList.add(charge);
-        asyncWrite(new WriteTask() {
+        return asyncJournaledWrite(JOURNAL_OP_ADD, encodeCharge(charge), new WriteTask() {
+            @Override
+            public boolean write(ManagedDatabase db) {
+                insertCharge(db, charge);
+                notifyListeners(Collections.singletonList(new ChargeChange(ChargeChange.Type.INSERTED, charge)));
+                return true;
+            }
+        });
+    }
+    public Future<Boolean> update(final long id, final String title, final float price, final String des) {
+        return asyncWriteInTransaction(new WriteTask() {
             @Override
             public boolean write(ManagedDatabase db) {
-                String sql = String.format("insert into charge values(null, %d, %d, \'%s\', %.2f, \'%s\')", new Date().getTime(), new Date().getTime(), title, price, des);
-                Log.w("", "px sql " + sql);
-                db.execSQL(sql);
-                notifyListeners();
+                final Charge oldCharge = queryCharge(db, id);
+                if (oldCharge == null)
+                    return false;
+
+                final Charge newCharge = new Charge(id, oldCharge.getPaidTime(), oldCharge.getCreateTime(), title, price, des);
+                db.execSQL("update charge set title = ?, number = ?, description = ? where _id = ?", new Object[] { title, price, des, id });
+                mDailySummary.subtract(db, mWriterCalendar, oldCharge);
+                mMonthlySummary.subtract(db, mWriterCalendar, oldCharge);
+                mDailySummary.accumulate(db, mWriterCalendar, newCharge);
+                mMonthlySummary.accumulate(db, mWriterCalendar, newCharge);
+                notifyListeners(Collections.singletonList(new ChargeChange(ChargeChange.Type.UPDATED, newCharge)));
                 return true;
             }
         });
     }
-    public Observable query(final int index, final int pageCount) {
-        return Observable.create(new Observable.OnSubscribe<List<? extends Charge>>() {
+    public Future<Boolean> remove(final long id) {
+        return asyncWriteInTransaction(new WriteTask() {
             @Override
-            public void call(final Subscriber<? super List<? extends Charge>> subscriber) {
+            public boolean write(ManagedDatabase db) {
+                final Charge oldCharge = queryCharge(db, id);
+                if (oldCharge == null)
+                    return false;
+
+                db.execSQL("delete from charge where _id = ?", new Object[] { id });
+                mDailySummary.subtract(db, mWriterCalendar, oldCharge);
+                mMonthlySummary.subtract(db, mWriterCalendar, oldCharge);
+                notifyListeners(Collections.singletonList(new ChargeChange(ChargeChange.Type.DELETED, oldCharge)));
+                return true;
+            }
+        });
+    }
+    public Future<Boolean> addAll(Collection<? extends Charge> charges) {
+        final ArrayList<Charge> pendingList = new ArrayList<Charge>(charges);
+        mChargeList.addAll(pendingList);
+
+        // 每INSERT_BATCH_SIZE条记录提交一次事务, 批次之间写线程可以穿插执行其它写任务.
+        final ArrayList<Future<Boolean>> batchFutures = new ArrayList<Future<Boolean>>();
+        for (int from = 0; from < pendingList.size(); from += INSERT_BATCH_SIZE) {
+            final List<Charge> batch = pendingList.subList(from, Math.min(from + INSERT_BATCH_SIZE, pendingList.size()));
+            batchFutures.add(asyncWrite(new WriteTask() {
+                @Override
+                public boolean write(ManagedDatabase db) {
+                    final ArrayList<ChargeChange> changes = new ArrayList<ChargeChange>(batch.size());
+                    boolean succeed = true;
+                    db.beginTransaction();
                     try {
-                        String sql = String.format("select * from charge order by _id desc limit %d offset %d", pageCount, index);
-                        Log.w("", "px sql " + sql);
-                        Cursor cursor = mDb.rawQuery(sql, null);
-                        LinkedList<Charge> chargeList = new LinkedList<Charge>();
-                        if (cursor.moveToFirst()) {
-                            do {
-                                final long id = cursor.getLong(cursor.getColumnIndex("_id"));
-                                final Date paidDate = new Date(cursor.getLong(cursor.getColumnIndex("paid_date")));
-                                final Date createDate = new Date(cursor.getLong(cursor.getColumnIndex("create_date")));
-                                final String title = cursor.getString(cursor.getColumnIndex("title"));
-                                final float number = cursor.getFloat(cursor.getColumnIndex("number"));
-                                final String des = cursor.getString(cursor.getColumnIndex("description"));
-                                chargeList.add(new Charge(id, paidDate, createDate, title, number, des));
-                            } while (cursor.moveToNext());
+                        for (Charge charge : batch) {
+                            insertCharge(db, charge);
+                            changes.add(new ChargeChange(ChargeChange.Type.INSERTED, charge));
                         }
-                        subscriber.onNext(chargeList);
-                        subscriber.onCompleted();
-                    } catch (final Throwable e) {
-                        subscriber.onError(e);
+                        db.setTransactionSuccessful();
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        succeed = false;
+                        changes.clear();
+                    } finally {
+                        db.endTransaction();
+                    }
+
+                    if (changes.size() > 0) {
+                        notifyListeners(changes);
+                    }
+                    return succeed;
+                }
+            }));
+        }
+        // 排在所有批次之后执行, 此时各批次都已完成
+        return asyncWrite(new WriteTask() {
+            @Override
+            public boolean write(ManagedDatabase db) {
+                boolean succeed = true;
+                for (Future<Boolean> each : batchFutures) {
+                    try {
+                        succeed &= each.get();
+                    } catch (Throwable e) {
+                        succeed = false;
                     }
                 }
-            }).observeOn(AndroidSchedulers.mainThread()).subscribeOn(Schedulers.from(mDbWriter));
+                return succeed;
+            }
+        });
+    }
+    /**
+     * 按_id倒序分页查询. token为null时查询第一页, 之后传入上一页的{@link ChargePage#getNextToken()}.
+     * 通过_id范围定位起点, 翻到任意深度的耗时都与第一页相同.
+     */
+    public Observable<ChargePage> queryPage(final ChargePage.Token token, final int pageCount) {
+        return Observable.create(new Observable.OnSubscribe<ChargePage>() {
+            @Override
+            public void call(final Subscriber<? super ChargePage> subscriber) {
+                Cursor cursor = null;
+                try {
+                    waitForReady();
+                    // 多取一条用来判断是否还有下一页
+                    final String limit = String.valueOf(pageCount + 1);
+                    if (token == null) {
+                        cursor = mDb.rawQuery("select * from charge order by _id desc limit " + limit, null);
+                    } else {
+                        cursor = mDb.rawQuery("select * from charge where _id < ? order by _id desc limit " + limit,
+                                new String[] { String.valueOf(token.mBeforeId) });
+                    }
+
+                    final List<Charge> chargeList = readCharges(cursor, pageCount);
+                    final ChargePage.Token nextToken = cursor.getCount() > pageCount && chargeList.size() > 0 ?
+                            new ChargePage.Token(chargeList.get(chargeList.size() - 1).getId()) : null;
+                    subscriber.onNext(new ChargePage(chargeList, nextToken));
+                    subscriber.onCompleted();
+                } catch (final Throwable e) {
+                    subscriber.onError(e);
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+        }).observeOn(AndroidSchedulers.mainThread()).subscribeOn(Schedulers.from(mDbReader));
+    }
+
+    public Observable<List<ChargeSummary>> queryDailySummaries(final long fromTime, final long toTime) {
+        return querySummaries(mDailySummary, fromTime, toTime);
+    }
+    public Observable<List<ChargeSummary>> queryMonthlySummaries(final long fromTime, final long toTime) {
+        return querySummaries(mMonthlySummary, fromTime, toTime);
+    }
+    /**
+     * 统计[fromTime, toTime]所在各天的合计, 只读取按天汇总的行, 耗时与天数成正比.
+     */
+    public Observable<ChargeSummary> querySpending(final long fromTime, final long toTime) {
+        return Observable.create(new Observable.OnSubscribe<ChargeSummary>() {
+            @Override
+            public void call(final Subscriber<? super ChargeSummary> subscriber) {
+                try {
+                    waitForReady();
+                    subscriber.onNext(mDailySummary.total(mDb, fromTime, toTime));
+                    subscriber.onCompleted();
+                } catch (final Throwable e) {
+                    subscriber.onError(e);
+                }
+            }
+        }).observeOn(AndroidSchedulers.mainThread()).subscribeOn(Schedulers.from(mDbReader));
+    }
+
+    /**
+     * 按_id顺序流式读取全部账目, 每次发出最多chunkSize条, 只按下游的请求量读取, 内存占用与账目总数无关.
+     * 结果在数据库读线程上发出, 适合导出和统计, 不要在回调中直接更新界面.
+     */
+    public Observable<List<Charge>> streamAll(int chunkSize) {
+        return streamQuery("select * from charge order by _id", null, new ChargeMapper(), chunkSize);
+    }
+    /**
+     * 查询paid_date在[fromTime, toTime)内的账目, 按paid_date倒序分批发出, 每批最多SEARCH_CHUNK_SIZE条.
+     */
+    public Observable<List<Charge>> searchByDate(final long fromTime, final long toTime) {
+        return search("select * from charge where paid_date >= ? and paid_date < ? order by paid_date desc",
+                new String[] { String.valueOf(fromTime), String.valueOf(toTime) });
+    }
+    /**
+     * 按标题和备注全文检索, 每个空白分隔的词按前缀匹配, 结果按_id倒序分批发出.
+     */
+    public Observable<List<Charge>> searchByText(final String text) {
+        final StringBuilder match = new StringBuilder();
+        for (String term : text.replace("\"", " ").trim().split("\\s+")) {
+            if (term.length() > 0) {
+                match.append(match.length() > 0 ? " \"" : "\"").append(term).append("*\"");
+            }
+        }
+        if (match.length() == 0) {
+            return Observable.empty();
+        }
+
+        return search("select charge.* from charge_fts join charge on charge._id = charge_fts.docid "
+                + "where charge_fts match ? order by charge._id desc", new String[] { match.toString() });
     }
 
     // ### 实现函数 ###
@@ -102,14 +329,142 @@ public class AccountBook extends AsyncDatabase {
     protected void createTable(ManagedDatabase db) {
         db.execSQL("create table charge(_id integer primary key autoincrement, paid_date integer, create_date integer, title text, number real, description text)");
     }
-    private void notifyListeners() {
-        MainThread.runLater(new Runnable() {
+    @Override
+    protected boolean applyJournaledWrite(ManagedDatabase db, int operation, byte[] payload) {
+        if (operation != JOURNAL_OP_ADD)
+            return super.applyJournaledWrite(db, operation, payload);
+
+        final Charge charge;
+        try {
+            charge = decodeCharge(payload);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        insertCharge(db, charge);
+        notifyListeners(Collections.singletonList(new ChargeChange(ChargeChange.Type.INSERTED, charge)));
+        return true;
+    }
+    private static byte[] encodeCharge(Charge charge) {
+        final ArchiveOutput out = new ArchiveOutput(64);
+        out.writeSignedVarLong(charge.getPaidTime());
+        out.writeSignedVarLong(charge.getCreateTime());
+        out.writeString(charge.getTitle());
+        out.writeFloat(charge.getPrice());
+        out.writeString(charge.getDescription());
+        return out.toByteArray();
+    }
+    private static Charge decodeCharge(byte[] payload) throws IOException {
+        final ArchiveInput in = new ArchiveInput(payload, 0, payload.length);
+        final long paidTime = in.readSignedVarLong();
+        final long createTime = in.readSignedVarLong();
+        final String title = in.readString();
+        final float price = in.readFloat();
+        final String des = in.readString();
+        return new Charge(0, paidTime, createTime, title, price, des);
+    }
+    private static long queryLong(ManagedDatabase db, String sql, String... selectionArgs) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, selectionArgs);
+            return cursor.moveToFirst() ? DbUtils.getLong(cursor, 0) : 0;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+    private Observable<List<Charge>> search(final String sql, final String[] selectionArgs) {
+        return streamQuery(sql, selectionArgs, new ChargeMapper(), SEARCH_CHUNK_SIZE).observeOn(AndroidSchedulers.mainThread());
+    }
+    private Observable<List<ChargeSummary>> querySummaries(final ChargeSummaryTable table, final long fromTime, final long toTime) {
+        return Observable.create(new Observable.OnSubscribe<List<ChargeSummary>>() {
+            @Override
+            public void call(final Subscriber<? super List<ChargeSummary>> subscriber) {
+                try {
+                    waitForReady();
+                    subscriber.onNext(table.query(mDb, fromTime, toTime));
+                    subscriber.onCompleted();
+                } catch (final Throwable e) {
+                    subscriber.onError(e);
+                }
+            }
+        }).observeOn(AndroidSchedulers.mainThread()).subscribeOn(Schedulers.from(mDbReader));
+    }
+    private void insertCharge(ManagedDatabase db, Charge charge) {
+        // 语句来自数据库的缓存, close()后放回缓存, 不会一直持有数据库的引用.
+        final ManagedDatabaseStatement statement = db.obtainStatement("insert into charge(paid_date, create_date, title, number, description) values(?, ?, ?, ?, ?)");
+        try {
+            statement.bindLong(1, charge.getPaidTime());
+            statement.bindLong(2, charge.getCreateTime());
+            statement.bindString(3, charge.getTitle());
+            statement.bindDouble(4, charge.getPrice());
+            statement.bindString(5, charge.getDescription());
+            charge.setId(statement.executeInsert());
+        } finally {
+            statement.close();
+        }
+
+        // 汇总表和账目在同一个事务中更新
+        mDailySummary.accumulate(db, mWriterCalendar, charge);
+        mMonthlySummary.accumulate(db, mWriterCalendar, charge);
+    }
+    private static List<Charge> readCharges(Cursor cursor, int maxCount) {
+        return DbUtils.mapRows(cursor, new ChargeMapper(), maxCount);
+    }
+    private static Charge queryCharge(ManagedDatabase db, long id) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("select * from charge where _id = ?", new String[] { String.valueOf(id) });
+            final List<Charge> chargeList = readCharges(cursor, 1);
+            return chargeList.size() > 0 ? chargeList.get(0) : null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+    private void notifyListeners(final List<ChargeChange> changes) {
+        // 每个变更都要送达, 而整体刷新的通知在同一帧内只需要最后一次
+        MainThread.runInFrame(new Runnable() {
             @Override
             public void run() {
-                for (int i = 0; i < mListeners.size(); i++) {
-                    mListeners.get(i).onAccountBookChanged();
+                for (int i = 0; i < mChangeListeners.size(); i++) {
+                    mChangeListeners.get(i).onChargesChanged(changes);
                 }
             }
         });
+        MainThread.runInFrame(mNotifyBookChanged, mNotifyBookChanged);
+    }
+
+    // ### 内部类 ###
+    private static class ChargeMapper implements RowMapper<Charge> {
+        private int mIdIndex;
+        private int mPaidDateIndex;
+        private int mCreateDateIndex;
+        private int mTitleIndex;
+        private int mNumberIndex;
+        private int mDescriptionIndex;
+
+        @Override
+        public void bindColumns(Cursor cursor) {
+            mIdIndex = cursor.getColumnIndex("_id");
+            mPaidDateIndex = cursor.getColumnIndex("paid_date");
+            mCreateDateIndex = cursor.getColumnIndex("create_date");
+            mTitleIndex = cursor.getColumnIndex("title");
+            mNumberIndex = cursor.getColumnIndex("number");
+            mDescriptionIndex = cursor.getColumnIndex("description");
+        }
+
+        @Override
+        public Charge mapRow(Cursor cursor) {
+            return new Charge(
+                    DbUtils.getLong(cursor, mIdIndex),
+                    DbUtils.getLong(cursor, mPaidDateIndex),
+                    DbUtils.getLong(cursor, mCreateDateIndex),
+                    DbUtils.getString(cursor, mTitleIndex),
+                    DbUtils.getFloat(cursor, mNumberIndex),
+                    DbUtils.getString(cursor, mDescriptionIndex));
+        }
     }
 }
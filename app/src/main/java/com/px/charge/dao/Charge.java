@@ -8,8 +8,8 @@ import java.util.Date;
  */
 public class Charge implements Serializable {
     private long mId;
-    private Date mPaidDate;
-    private Date mCreateDate;
+    private long mPaidTime;
+    private long mCreateTime;
     private String mTitle;
     private float mNumber;
     private String mDescription;
@@ -18,13 +18,20 @@ public class Charge implements Serializable {
         this.mTitle = mTitle;
         this.mNumber = mNumber;
         this.mDescription = mDescription;
+        this.mPaidTime = System.currentTimeMillis();
+        this.mCreateTime = mPaidTime;
     }
-    protected Charge(long id, Date paidDate, Date createDate, String title, float number, String des) {
-        this(title, number, des);
-
+    protected Charge(long id, long paidTime, long createTime, String title, float number, String des) {
         mId = id;
-        mPaidDate = paidDate;
-        mCreateDate = createDate;
+        mPaidTime = paidTime;
+        mCreateTime = createTime;
+        mTitle = title;
+        mNumber = number;
+        mDescription = des;
+    }
+
+    public long getId() {
+        return mId;
     }
 
     public String getTitle() {
@@ -35,7 +42,28 @@ public class Charge implements Serializable {
         return mNumber;
     }
 
+    // 毫秒时间戳, 列表等热点路径应优先使用, 避免为每一行创建Date对象
+    public long getPaidTime() {
+        return mPaidTime;
+    }
+
+    public long getCreateTime() {
+        return mCreateTime;
+    }
+
     public Date getPaidDate() {
-        return mPaidDate;
+        return new Date(mPaidTime);
+    }
+
+    public Date getCreateDate() {
+        return new Date(mCreateTime);
+    }
+
+    public String getDescription() {
+        return mDescription;
+    }
+
+    void setId(long id) {
+        mId = id;
     }
 }
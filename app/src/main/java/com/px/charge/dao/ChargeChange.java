@@ -0,0 +1,32 @@
+package com.px.charge.dao;
+
+/**
+ * 一条账目的变更. 删除时getCharge()返回被删除前的账目.
+ */
+public class ChargeChange {
+    public static enum Type {
+        INSERTED,
+        UPDATED,
+        DELETED
+    }
+
+    private final Type mType;
+    private final Charge mCharge;
+
+    protected ChargeChange(Type type, Charge charge) {
+        mType = type;
+        mCharge = charge;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public long getId() {
+        return mCharge.getId();
+    }
+
+    public Charge getCharge() {
+        return mCharge;
+    }
+}
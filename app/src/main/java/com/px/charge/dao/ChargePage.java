@@ -0,0 +1,38 @@
+package com.px.charge.dao;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 一页按_id倒序排列的账目, 以及用来获取下一页的续查标记.
+ */
+public class ChargePage {
+    private final List<Charge> mCharges;
+    private final Token mNextToken;
+
+    protected ChargePage(List<Charge> charges, Token nextToken) {
+        mCharges = charges;
+        mNextToken = nextToken;
+    }
+
+    public List<Charge> getCharges() {
+        return mCharges;
+    }
+
+    public Token getNextToken() {
+        return mNextToken;
+    }
+
+    public boolean hasMore() {
+        return mNextToken != null;
+    }
+
+    // 不透明的续查标记, 调用方只需原样传回AccountBook.queryPage()
+    public static final class Token implements Serializable {
+        final long mBeforeId;
+
+        Token(long beforeId) {
+            mBeforeId = beforeId;
+        }
+    }
+}
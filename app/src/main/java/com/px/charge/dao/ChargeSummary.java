@@ -0,0 +1,41 @@
+package com.px.charge.dao;
+
+/**
+ * 一个时间段(天或月)内的账目汇总.
+ */
+public class ChargeSummary {
+    private final int mBucket;
+    private final double mTotal;
+    private final int mCount;
+    private final float mMin;
+    private final float mMax;
+
+    protected ChargeSummary(int bucket, double total, int count, float min, float max) {
+        mBucket = bucket;
+        mTotal = total;
+        mCount = count;
+        mMin = min;
+        mMax = max;
+    }
+
+    // 按天汇总时为yyyyMMdd, 按月汇总时为yyyyMM, 区间合计时为0
+    public int getBucket() {
+        return mBucket;
+    }
+
+    public double getTotal() {
+        return mTotal;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public float getMin() {
+        return mMin;
+    }
+
+    public float getMax() {
+        return mMax;
+    }
+}
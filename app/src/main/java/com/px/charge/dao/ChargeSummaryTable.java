@@ -0,0 +1,144 @@
+package com.px.charge.dao;
+
+import android.database.Cursor;
+
+import com.common.database.DbUtils;
+import com.common.database.ManagedDatabase;
+import com.common.database.ManagedDatabaseStatement;
+import com.common.database.RowMapper;
+
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * 按天或按月汇总charge表的number列. 汇总行和账目在同一个事务中更新, 区间统计只需读取区间内的汇总行.
+ */
+class ChargeSummaryTable {
+    private final String mTableName;
+    private final boolean mDaily;
+    private final String mSeedSql;
+    private final String mAccumulateSql;
+
+    public ChargeSummaryTable(String tableName, boolean daily) {
+        mTableName = tableName;
+        mDaily = daily;
+        mSeedSql = "insert or ignore into " + mTableName + " values(?, 0, 0, ?, ?)";
+        mAccumulateSql = "update " + mTableName
+                + " set total = total + ?, count = count + 1, min_number = min(min_number, ?), max_number = max(max_number, ?) where bucket = ?";
+    }
+
+    public void create(ManagedDatabase db) {
+        db.execSQL("create table if not exists " + mTableName + "(bucket integer primary key, total real, count integer, min_number real, max_number real)");
+    }
+    public void rebuild(ManagedDatabase db) {
+        // 与bucketOf()一致, 按本地时区划分
+        final String format = mDaily ? "%Y%m%d" : "%Y%m";
+        db.execSQL("delete from " + mTableName);
+        db.execSQL("insert into " + mTableName + " select cast(strftime('" + format + "', paid_date / 1000, 'unixepoch', 'localtime') as integer), "
+                + "sum(number), count(*), min(number), max(number) from charge group by 1");
+    }
+    public void accumulate(ManagedDatabase db, Calendar calendar, Charge charge) {
+        final int bucket = bucketOf(calendar, charge.getPaidTime());
+        final float number = charge.getPrice();
+
+        // 语句来自数据库的缓存, close()后放回缓存, 不会一直持有数据库的引用.
+        final ManagedDatabaseStatement seedStatement = db.obtainStatement(mSeedSql);
+        try {
+            seedStatement.bindLong(1, bucket);
+            seedStatement.bindDouble(2, number);
+            seedStatement.bindDouble(3, number);
+            seedStatement.executeInsert();
+        } finally {
+            seedStatement.close();
+        }
+
+        final ManagedDatabaseStatement accumulateStatement = db.obtainStatement(mAccumulateSql);
+        try {
+            accumulateStatement.bindDouble(1, number);
+            accumulateStatement.bindDouble(2, number);
+            accumulateStatement.bindDouble(3, number);
+            accumulateStatement.bindLong(4, bucket);
+            accumulateStatement.execute();
+        } finally {
+            accumulateStatement.close();
+        }
+    }
+    // 账目已经从charge表中删除或修改之后调用, 最小值和最大值按该时间段内剩余的账目重新计算
+    public void subtract(ManagedDatabase db, Calendar calendar, Charge charge) {
+        final int bucket = bucketOf(calendar, charge.getPaidTime());
+        db.execSQL("update " + mTableName + " set total = total - ?, count = count - 1 where bucket = ?",
+                new Object[] { charge.getPrice(), bucket });
+        db.execSQL("delete from " + mTableName + " where bucket = ? and count <= 0", new Object[] { bucket });
+
+        final long fromTime = bucketStart(calendar, charge.getPaidTime());
+        calendar.add(mDaily ? Calendar.DAY_OF_MONTH : Calendar.MONTH, 1);
+        final long toTime = calendar.getTimeInMillis();
+        db.execSQL("update " + mTableName + " set "
+                + "min_number = (select min(number) from charge where paid_date >= ?1 and paid_date < ?2), "
+                + "max_number = (select max(number) from charge where paid_date >= ?1 and paid_date < ?2) where bucket = ?3",
+                new Object[] { fromTime, toTime, bucket });
+    }
+    public List<ChargeSummary> query(ManagedDatabase db, long fromTime, long toTime) {
+        final Calendar calendar = Calendar.getInstance();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("select * from " + mTableName + " where bucket >= ? and bucket <= ? order by bucket",
+                    new String[] { String.valueOf(bucketOf(calendar, fromTime)), String.valueOf(bucketOf(calendar, toTime)) });
+            return DbUtils.mapRows(cursor, new SummaryMapper());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+    public ChargeSummary total(ManagedDatabase db, long fromTime, long toTime) {
+        final Calendar calendar = Calendar.getInstance();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("select 0, sum(total), sum(count), min(min_number), max(max_number) from " + mTableName + " where bucket >= ? and bucket <= ?",
+                    new String[] { String.valueOf(bucketOf(calendar, fromTime)), String.valueOf(bucketOf(calendar, toTime)) });
+            return cursor.moveToFirst() ? new SummaryMapper().mapRow(cursor) : new ChargeSummary(0, 0, 0, 0, 0);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    // ### 实现函数 ###
+    private int bucketOf(Calendar calendar, long time) {
+        calendar.setTimeInMillis(time);
+        final int month = calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+        return mDaily ? month * 100 + calendar.get(Calendar.DAY_OF_MONTH) : month;
+    }
+
+    private long bucketStart(Calendar calendar, long time) {
+        calendar.setTimeInMillis(time);
+        if (mDaily == false) {
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    // ### 内部类 ###
+    private static class SummaryMapper implements RowMapper<ChargeSummary> {
+        @Override
+        public void bindColumns(Cursor cursor) {
+            // 汇总表和区间合计的列顺序固定, 直接按序号读取
+        }
+
+        @Override
+        public ChargeSummary mapRow(Cursor cursor) {
+            return new ChargeSummary(
+                    DbUtils.getInt(cursor, 0),
+                    DbUtils.getDouble(cursor, 1),
+                    DbUtils.getInt(cursor, 2),
+                    DbUtils.getFloat(cursor, 3),
+                    DbUtils.getFloat(cursor, 4));
+        }
+    }
+}
@@ -16,9 +16,11 @@ import com.common.ui.UiUtils;
 import com.px.charge.R;
 import com.px.charge.dao.AccountBook;
 import com.px.charge.dao.Charge;
+import com.px.charge.dao.ChargeChange;
+import com.px.charge.dao.ChargePage;
 
 import java.text.SimpleDateFormat;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 import rx.functions.Action1;
@@ -26,22 +28,24 @@ import rx.functions.Action1;
 /**
  * Created by pangpengde on 15/8/16.
  */
-public class ListFragment extends BaseFragment implements AccountBook.AccountBookChangedListener {
+public class ListFragment extends BaseFragment implements AccountBook.ChargesChangedListener {
     private static final String TAG = "ListFragment";
     private static final int PAGE_COUNT = 25;
-    private final LinkedList<Charge> mChargeList = new LinkedList<Charge>();
+    private final ArrayList<Charge> mChargeList = new ArrayList<Charge>();
     private boolean mFirstAttach = false;
+    private ChargePage.Token mNextToken = null;
     private DkWebListView mListView;
     private DkWebListView.ListAdapter mAdapter = new DkWebListView.ListAdapter() {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
         @Override
         protected void onClearAllItems() {
-
+            mChargeList.clear();
+            mNextToken = null;
         }
 
         @Override
         protected void onLoadMoreItems(int suggestedCount) {
-            loadData(mChargeList.size(), suggestedCount);
+            loadData(mNextToken, suggestedCount);
         }
 
         @Override
@@ -95,33 +99,30 @@ public class ListFragment extends BaseFragment implements AccountBook.AccountBoo
         super.onResume();
         if (mFirstAttach == false) {
             mFirstAttach = true;
-            loadData(0, PAGE_COUNT);
+            loadData(null, PAGE_COUNT);
         }
     }
 
     @Override
     public void onAttach(Activity activity) {
 
-        AccountBook.get().addListener(this);
+        AccountBook.get().addChangeListener(this);
         super.onAttach(activity);
     }
 
     @Override
     public void onDetach() {
-        AccountBook.get().removeListener(this);
+        AccountBook.get().removeChangeListener(this);
         super.onDetach();
     }
 
-    private void loadData(int index, int pageCount) {
-        AccountBook.get().query(index, pageCount).subscribe(new Action1<List<? extends Charge>>() {
+    private void loadData(ChargePage.Token token, int pageCount) {
+        AccountBook.get().queryPage(token, pageCount).subscribe(new Action1<ChargePage>() {
             @Override
-            public void call(List<? extends Charge> charges) {
-                if (charges.size() > 0) {
-                    mChargeList.addAll(charges);
-                    mAdapter.notifyLoadingDone(true);
-                } else {
-                    mAdapter.notifyLoadingDone(false);
-                }
+            public void call(ChargePage page) {
+                mChargeList.addAll(page.getCharges());
+                mNextToken = page.getNextToken();
+                mAdapter.notifyLoadingDone(page.hasMore());
             }
         }, new Action1<Throwable>() {
             @Override
@@ -132,9 +133,68 @@ public class ListFragment extends BaseFragment implements AccountBook.AccountBoo
     }
 
     @Override
-    public void onAccountBookChanged() {
-        if (mListView != null) {
+    public void onChargesChanged(List<ChargeChange> changes) {
+        if (mListView == null)
+            return;
+
+        // 批量导入等大量变更时直接重新加载
+        if (changes.size() > PAGE_COUNT) {
             mListView.refresh(true);
+            return;
+        }
+
+        for (ChargeChange change : changes) {
+            switch (change.getType()) {
+                case INSERTED:
+                    onChargeInserted(change.getCharge());
+                    break;
+                case UPDATED: {
+                    final int index = indexOfCharge(change.getId());
+                    if (index >= 0) {
+                        mChargeList.set(index, change.getCharge());
+                        mAdapter.notifyItemsModified(index, 1);
+                    }
+                    break;
+                }
+                case DELETED: {
+                    final int index = indexOfCharge(change.getId());
+                    if (index >= 0) {
+                        mChargeList.remove(index);
+                        mAdapter.notifyItemsRemoved(index, 1);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private void onChargeInserted(Charge charge) {
+        switch (mAdapter.getListState()) {
+            case MORE_TO_LOAD:
+            case LOADING_MORE:
+            case LOADING_COMPLETE:
+                // 列表按_id倒序排列, 新账目总是排在最前面; 已经由分页查询加载过的不再重复添加
+                if (mChargeList.size() > 0 && mChargeList.get(0).getId() >= charge.getId())
+                    return;
+                mChargeList.add(0, charge);
+                mAdapter.notifyItemsAdded(1, 0);
+                break;
+            case EMPTY:
+                mChargeList.add(0, charge);
+                mAdapter.notifyLoadingDone(false);
+                break;
+            default:
+                // 正在加载第一页或加载失败, 下一次加载会包含这条账目
+                break;
+        }
+    }
+
+    private int indexOfCharge(long id) {
+        for (int i = 0; i < mChargeList.size(); i++) {
+            if (mChargeList.get(i).getId() == id) {
+                return i;
+            }
         }
+        return -1;
     }
 }
@@ -0,0 +1,116 @@
+package com.common.database;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * 编码器与Java序列化的对比, 记录内容相当于一页账目. 每轮把对象编码成字节数组再解码回来,
+ * 结果输出到logcat(tag为benchmark). 目标是往返比Java序列化快5倍以上, 但速度受设备和编译器影响,
+ * 只断言编码器的记录更小且往返不比Java序列化慢.
+ */
+public class ArchiveCodecBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "benchmark";
+    private static final int ITEM_COUNT = 100;
+    private static final long WARMUP_MILLIS = 1000;
+    private static final long RUN_MILLIS = 1000;
+
+    // 由字典和列表组成的记录, 由BinaryCodec处理
+    public void testMapRecord() throws Exception {
+        final ArrayList<Object> page = new ArrayList<Object>();
+        for (int n = 0; n < ITEM_COUNT; ++n) {
+            final HashMap<Object, Object> item = new HashMap<Object, Object>();
+            item.put("id", 1000000L + n);
+            item.put("amount", -12.5 * n);
+            item.put("time", 1500000000000L + n * 60000L);
+            item.put("note", "午饭 " + n);
+            final ArrayList<Object> tags = new ArrayList<Object>();
+            tags.add("餐饮");
+            tags.add(n % 7);
+            item.put("tags", tags);
+            page.add(item);
+        }
+        run("map", new BinaryCodec(), page);
+    }
+    // 带有注解字段的对象, 由FieldCodec处理
+    public void testFieldRecord() throws Exception {
+        final ArrayList<Object> page = new ArrayList<Object>();
+        for (int n = 0; n < ITEM_COUNT; ++n) {
+            final ArchiveCodecTest.Item item = new ArchiveCodecTest.Item();
+            item.mCount = -n;
+            item.mName = "午饭 " + n;
+            if (n % 10 == 0) {
+                item.mChild = new ArchiveCodecTest.Item();
+            }
+            page.add(item);
+        }
+        run("field", new FieldCodec(), page);
+    }
+
+    private interface RoundTrip {
+        Object run(Object object) throws Exception;
+    }
+
+    private void run(String name, final ArchiveCodec codec, Object object) throws Exception {
+        final ArchiveOutput out = new ArchiveOutput(256);
+        final RoundTrip codecRoundTrip = new RoundTrip() {
+            @Override
+            public Object run(Object object) throws Exception {
+                out.reset();
+                codec.encode(object, out);
+                final byte[] bytes = out.toByteArray();
+                return codec.decode(new ArchiveInput(bytes, 0, bytes.length), codec.getVersion());
+            }
+        };
+        final RoundTrip javaRoundTrip = new RoundTrip() {
+            @Override
+            public Object run(Object object) throws Exception {
+                final byte[] bytes = javaSerialize(object);
+                return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+            }
+        };
+        assertEquals(object, codecRoundTrip.run(object));
+        assertEquals(object, javaRoundTrip.run(object));
+
+        out.reset();
+        codec.encode(object, out);
+        final int codecSize = out.size();
+        final int javaSize = javaSerialize(object).length;
+
+        final long javaOps = measure(javaRoundTrip, object);
+        final long codecOps = measure(codecRoundTrip, object);
+        final double speedup = javaOps > 0 ? (double) codecOps / javaOps : 0;
+        Log.i(LOG_TAG, String.format(Locale.US, "%s java=%d ops/s %d bytes codec=%d ops/s %d bytes (%.2fx, %.0f%% size)",
+                name, javaOps, javaSize, codecOps, codecSize, speedup, 100.0 * codecSize / javaSize));
+        assertTrue(codecSize < javaSize);
+        assertTrue(speedup >= 1);
+    }
+    // 先按时间预热, 等编译器完成优化之后再计数
+    private long measure(RoundTrip roundTrip, Object object) throws Exception {
+        runFor(roundTrip, object, WARMUP_MILLIS);
+        return runFor(roundTrip, object, RUN_MILLIS) * 1000 / RUN_MILLIS;
+    }
+    private static long runFor(RoundTrip roundTrip, Object object, long millis) throws Exception {
+        final long deadline = System.nanoTime() + millis * 1000000L;
+        long ops = 0;
+        while (System.nanoTime() < deadline) {
+            roundTrip.run(object);
+            ++ops;
+        }
+        return ops;
+    }
+    private static byte[] javaSerialize(Object object) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,268 @@
+package com.common.database;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+
+public class ArchiveCodecTest extends AndroidTestCase {
+    private File mDbFile;
+    private String mDbUri;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mDbFile = getContext().getDatabasePath("archive_codec_test.db");
+        mDbFile.getParentFile().mkdirs();
+        mDbFile.delete();
+        mDbUri = Uri.fromFile(mDbFile).toString();
+    }
+    @Override
+    protected void tearDown() throws Exception {
+        mDbFile.delete();
+        super.tearDown();
+    }
+
+    public void testSignedVarLongRoundTrip() throws Exception {
+        final long[] values = { 0, 1, -1, 63, -64, 64, -65, 1L << 35, -(1L << 35),
+                Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+        final ArchiveOutput out = new ArchiveOutput(16);
+        for (long value : values) {
+            out.writeSignedVarLong(value);
+        }
+        final ArchiveInput in = new ArchiveInput(out.toByteArray(), 0, out.size());
+        for (long value : values) {
+            assertEquals(value, in.readSignedVarLong());
+        }
+        assertEquals(0, in.available());
+
+        // zigzag编码后绝对值较小的负数只占一个字节
+        out.reset();
+        out.writeSignedVarLong(-64);
+        assertEquals(1, out.size());
+    }
+    public void testStringRoundTrip() throws Exception {
+        // 代理对中的两个char分别按3个字节编码, 读出后仍是同一个字符串
+        final String[] values = { "", "ascii", "été", "中文记账", "\uD83D\uDE00 \uD83D\uDCB0",
+                "\u0000\u007f\u0080\u07ff\u0800\uffff" };
+        final ArchiveOutput out = new ArchiveOutput(16);
+        for (String value : values) {
+            out.writeString(value);
+        }
+        final ArchiveInput in = new ArchiveInput(out.toByteArray(), 0, out.size());
+        for (String value : values) {
+            assertEquals(value, in.readString());
+        }
+        assertEquals(0, in.available());
+
+        out.reset();
+        out.writeString("中");
+        assertEquals(1 + 3, out.size());
+    }
+    public void testBinaryCodecRoundTrip() throws Exception {
+        final BinaryCodec codec = new BinaryCodec();
+        final Object[] values = { null, true, false, (byte) -7, (short) -300, '中', -1, Integer.MIN_VALUE,
+                -5L, Long.MIN_VALUE, -1.5f, Float.NaN, -2.25, Double.MAX_VALUE, "记账\uD83D\uDE00" };
+        for (Object value : values) {
+            final Object decoded = roundTrip(codec, value);
+            assertEquals(value, decoded);
+            if (value != null) {
+                assertEquals(value.getClass(), decoded.getClass());
+            }
+        }
+
+        final byte[] bytes = { 0, -1, 127, -128 };
+        assertTrue(Arrays.equals(bytes, (byte[]) roundTrip(codec, bytes)));
+    }
+    public void testBinaryCodecNestedContainers() throws Exception {
+        final HashMap<Object, Object> inner = new HashMap<Object, Object>();
+        inner.put("amount", -12.5);
+        inner.put(-3, null);
+        inner.put("tags", listOf("早餐", "", null));
+        final ArrayList<Object> list = listOf(1, -2L, inner, listOf(listOf(), new HashMap<Object, Object>()));
+        final HashMap<Object, Object> outer = new HashMap<Object, Object>();
+        outer.put("items", list);
+        outer.put(7L, inner);
+
+        final Object decoded = roundTrip(new BinaryCodec(), outer);
+        assertEquals(HashMap.class, decoded.getClass());
+        assertEquals(outer, decoded);
+        assertEquals(ArrayList.class, ((HashMap<?, ?>) decoded).get("items").getClass());
+    }
+    public void testUnsupportedElementFallsBackToJavaSerialization() throws Exception {
+        final Archive archive = new Archive(mDbUri);
+        final ArrayList<Object> list = listOf(1, "a", new Date(1234567890L));
+        assertFalse(new BinaryCodec().canEncode(new Date()));
+
+        assertTrue(archive.writeObjectNow("fallback", list));
+        assertEquals(0xAC, readRecordBytes("fallback")[0] & 0xFF);
+        assertEquals(list, archive.readObject("fallback"));
+
+        // 能处理的对象使用编码器的标签
+        assertTrue(archive.writeObjectNow("binary", listOf(1, "a")));
+        assertEquals(BinaryCodec.TAG, readRecordBytes("binary")[0]);
+    }
+    public void testReadsLegacyJavaSerializedRecord() throws Exception {
+        final Archive archive = new Archive(mDbUri);
+        assertTrue(archive.writeObjectNow("other", 1));
+
+        // 旧版本直接保存ObjectOutputStream的输出
+        final HashMap<String, Object> legacy = new HashMap<String, Object>();
+        legacy.put("amount", 42L);
+        legacy.put("note", "午饭");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(legacy);
+        out.close();
+        final ManagedDatabase db = new ManagedDatabase(mDbUri);
+        db.execSQL("INSERT OR REPLACE INTO objects(name, stream) VALUES(?, ?)", new Object[] { "legacy", bytes.toByteArray() });
+
+        assertEquals(legacy, archive.readObject("legacy"));
+    }
+    public void testFieldCodecRoundTrip() throws Exception {
+        final Item item = new Item();
+        item.mCount = -42;
+        item.mName = "账本";
+        item.mChild = new Item();
+        item.mChild.mTags = listOf("x", -1L);
+        item.mTags = listOf();
+        for (int n = 0; n < 50; ++n) {
+            final Item tag = new Item();
+            tag.mCount = n;
+            item.mTags.add(tag);
+        }
+
+        final FieldCodec codec = new FieldCodec();
+        final ArchiveOutput out = new ArchiveOutput(16);
+        codec.encode(item, out);
+        final Item decoded = (Item) codec.decode(new ArchiveInput(out.toByteArray(), 0, out.size()), codec.getVersion());
+        assertEquals(item, decoded);
+
+        // 类名在一条记录中只写一次
+        final byte[] name = Item.class.getName().getBytes("UTF-8");
+        assertEquals(1, countOccurrences(out.toByteArray(), name));
+    }
+    public void testFieldCodecSkipsUnknownIdsAndKeepsDefaults() throws Exception {
+        // 模拟字段变化之后读取旧记录: 编号1的类型从String改成了int, 编号99已经删除
+        final ArchiveOutput out = new ArchiveOutput(16);
+        out.writeByte(FieldCodec.TYPE_OBJECT);
+        out.writeString(Item.class.getName());
+        out.writeVarLong(1);
+        out.writeByte(BinaryCodec.TYPE_STRING);
+        out.writeString("not a number");
+        out.writeVarLong(99);
+        out.writeByte(BinaryCodec.TYPE_LIST);
+        out.writeVarLong(1);
+        out.writeByte(BinaryCodec.TYPE_INT);
+        out.writeSignedVarLong(5);
+        out.writeVarLong(2);
+        out.writeByte(BinaryCodec.TYPE_STRING);
+        out.writeString("renamed");
+        out.writeVarLong(FieldCodec.FIELD_END);
+
+        final FieldCodec codec = new FieldCodec();
+        final Item decoded = (Item) codec.decode(new ArchiveInput(out.toByteArray(), 0, out.size()), 1);
+        assertEquals(new Item().mCount, decoded.mCount);
+        assertEquals("renamed", decoded.mName);
+        assertNull(decoded.mChild);
+    }
+    public void testFieldCodecReadsVersion1Records() throws Exception {
+        // 版本1中每个对象都写出完整的类名
+        final ArchiveOutput out = new ArchiveOutput(16);
+        out.writeByte(BinaryCodec.TYPE_LIST);
+        out.writeVarLong(2);
+        for (int n = 0; n < 2; ++n) {
+            out.writeByte(FieldCodec.TYPE_OBJECT);
+            out.writeString(Item.class.getName());
+            out.writeVarLong(1);
+            out.writeByte(BinaryCodec.TYPE_INT);
+            out.writeSignedVarLong(-n);
+            out.writeVarLong(FieldCodec.FIELD_END);
+        }
+
+        final Object decoded = new FieldCodec().decode(new ArchiveInput(out.toByteArray(), 0, out.size()), 1);
+        final Item first = new Item();
+        first.mCount = 0;
+        final Item second = new Item();
+        second.mCount = -1;
+        assertEquals(listOf(first, second), decoded);
+    }
+    public void testFieldCodecThroughArchive() throws Exception {
+        final Archive archive = new Archive(mDbUri);
+        archive.registerCodec(new FieldCodec());
+        final Item item = new Item();
+        item.mChild = new Item();
+
+        assertTrue(archive.writeObjectNow("item", item));
+        assertEquals(FieldCodec.TAG, readRecordBytes("item")[0]);
+        assertEquals(item, archive.readObject("item"));
+    }
+
+    public static class Item implements Serializable {
+        private static final long serialVersionUID = 1L;
+        @ArchiveField(1)
+        public int mCount = 7;
+        @ArchiveField(2)
+        public String mName = "default";
+        @ArchiveField(3)
+        public Item mChild;
+        @ArchiveField(4)
+        public ArrayList<Object> mTags;
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Item == false)
+                return false;
+
+            final Item other = (Item) o;
+            return mCount == other.mCount
+                    && equal(mName, other.mName)
+                    && equal(mChild, other.mChild)
+                    && equal(mTags, other.mTags);
+        }
+        @Override
+        public int hashCode() {
+            return mCount;
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private static Object roundTrip(ArchiveCodec codec, Object value) throws Exception {
+        final ArchiveOutput out = new ArchiveOutput(16);
+        codec.encode(value, out);
+        return codec.decode(new ArchiveInput(out.toByteArray(), 0, out.size()), codec.getVersion());
+    }
+    private byte[] readRecordBytes(String name) {
+        final Cursor cursor = new ManagedDatabase(mDbUri).rawQuery("SELECT stream FROM objects WHERE name = ?", new String[] { name });
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getBlob(0);
+        } finally {
+            cursor.close();
+        }
+    }
+    private static int countOccurrences(byte[] bytes, byte[] pattern) {
+        int count = 0;
+        for (int n = 0; n + pattern.length <= bytes.length; ++n) {
+            if (Arrays.equals(pattern, Arrays.copyOfRange(bytes, n, n + pattern.length))) {
+                ++count;
+            }
+        }
+        return count;
+    }
+    private static ArrayList<Object> listOf(Object... values) {
+        return new ArrayList<Object>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,150 @@
+package com.common.database;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncDatabaseTest extends AndroidTestCase {
+    private File mDbFile;
+    private TestDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mDbFile = getContext().getDatabasePath("async_database_test.db");
+        mDbFile.getParentFile().mkdirs();
+        mDbFile.delete();
+        mDb = new TestDatabase(Uri.fromFile(mDbFile).toString());
+    }
+    @Override
+    protected void tearDown() throws Exception {
+        mDbFile.delete();
+        super.tearDown();
+    }
+
+    public void testFailedGroupedWriteRollsBackOnlyItself() throws Exception {
+        assertTrue(mDb.mDb.supportsSavepointRollback());
+        mDb.setGroupCommit(60 * 1000, 3);
+
+        // 第二个写操作违反唯一约束, 三个写操作凑满一批后一起提交
+        final Future<Boolean> first = mDb.insert(1);
+        final Future<Boolean> second = mDb.insertAndFail(2);
+        final Future<Boolean> third = mDb.insert(3);
+
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        assertFalse(second.get(5, TimeUnit.SECONDS));
+        assertTrue(third.get(5, TimeUnit.SECONDS));
+        assertEquals(listOf(1, 3), mDb.queryValues());
+    }
+    public void testFlushDoesNotShortenNextWindow() throws Exception {
+        final long window = 600;
+        mDb.setGroupCommit(window, 2);
+
+        // 前两个写操作凑满一批立即提交, 为这一批设置的定时器不应该提前提交之后的写操作
+        mDb.insert(1);
+        mDb.insert(2).get(5, TimeUnit.SECONDS);
+        Thread.sleep(window / 2);
+        final long submitTime = System.nanoTime();
+        final Future<Boolean> late = mDb.insert(3);
+
+        assertTrue(late.get(5, TimeUnit.SECONDS));
+        final long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitTime);
+        assertTrue("committed after " + waited + "ms", waited >= window * 3 / 4);
+        assertEquals(listOf(1, 2, 3), mDb.queryValues());
+    }
+
+    public void testFailedMigrationFailsWritesAndRetries() throws Exception {
+        // 每次提交都会重新尝试失败的升级: 写操作和查询各失败一次, 第三次成功
+        final TestDatabase db = new TestDatabase(Uri.fromFile(mDbFile).toString(), 2);
+
+        // 升级失败时写操作不执行, 查询收到错误
+        assertFalse(db.insert(1).get(5, TimeUnit.SECONDS));
+        try {
+            db.queryValues();
+            fail();
+        } catch (IllegalStateException e) {
+
+        }
+
+        // 之后的读写重新尝试升级, 成功后正常执行
+        assertTrue(db.insert(2).get(5, TimeUnit.SECONDS));
+        assertEquals(listOf(2), db.queryValues());
+    }
+
+    private static List<Integer> listOf(Integer... values) {
+        final ArrayList<Integer> list = new ArrayList<Integer>();
+        for (Integer each : values) {
+            list.add(each);
+        }
+        return list;
+    }
+
+    private static class TestDatabase extends AsyncDatabase {
+        public TestDatabase(String uri) {
+            super(uri);
+        }
+        // 第二版升级在前failureCount次执行时抛出异常
+        public TestDatabase(String uri, final int failureCount) {
+            super(uri);
+
+            registerMigration(new Migration(DB_VERSION_FIRST + 1) {
+                private int mFailures = 0;
+
+                @Override
+                protected long migrate(ManagedDatabase db, long progress) {
+                    if (mFailures < failureCount) {
+                        ++mFailures;
+                        throw new IllegalStateException("migration failure " + mFailures);
+                    }
+                    return DONE;
+                }
+            });
+        }
+
+        public Future<Boolean> insert(final int value) {
+            return asyncWriteInTransaction(new WriteTask() {
+                @Override
+                public boolean write(ManagedDatabase db) {
+                    db.execSQL("INSERT INTO test VALUES(?)", new Object[] { value });
+                    return true;
+                }
+            });
+        }
+        // 先写入一行, 再因唯一约束失败, 已写入的行必须随保存点一起回滚
+        public Future<Boolean> insertAndFail(final int value) {
+            return asyncWriteInTransaction(new WriteTask() {
+                @Override
+                public boolean write(ManagedDatabase db) {
+                    db.execSQL("INSERT INTO test VALUES(?)", new Object[] { value });
+                    db.execSQL("INSERT INTO test VALUES(?)", new Object[] { value });
+                    return true;
+                }
+            });
+        }
+        public List<Integer> queryValues() {
+            waitForReady();
+            final ArrayList<Integer> values = new ArrayList<Integer>();
+            final Cursor cursor = mDb.rawQuery("SELECT value FROM test ORDER BY value", null);
+            try {
+                while (cursor.moveToNext()) {
+                    values.add(cursor.getInt(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            return values;
+        }
+
+        @Override
+        protected void createTable(ManagedDatabase db) {
+            db.execSQL("CREATE TABLE test(value INTEGER PRIMARY KEY)");
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.common.database;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 多线程下引用计数的吞吐量. 对照组在每次调用前后各加一次全局锁, 与改为原子计数之前acquireRef()/releaseRef()的加锁方式相同.
+ * 结果输出到logcat(tag为benchmark), 不对快慢做断言.
+ */
+public class ManagedDatabaseBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "benchmark";
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+    private static final long RUN_MILLIS = 1000;
+    private static final int ROW_COUNT = 1000;
+    private File mDbFile;
+    private ManagedDatabase mDb;
+    private Cursor mKeepOpen;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mDbFile = getContext().getDatabasePath("managed_database_benchmark.db");
+        mDbFile.getParentFile().mkdirs();
+        mDbFile.delete();
+        mDb = new ManagedDatabase(Uri.fromFile(mDbFile).toString(), "", true);
+        mDb.execSQL("CREATE TABLE bench(id INTEGER PRIMARY KEY, value TEXT)");
+        mDb.beginTransaction();
+        try {
+            for (int n = 0; n < ROW_COUNT; ++n) {
+                mDb.execSQL("INSERT INTO bench VALUES(?, ?)", new Object[] { n, "value-" + n });
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        // 测量期间一直持有一个游标, 数据库不会因计数归零而反复开关
+        mKeepOpen = mDb.rawQuery("SELECT 1", null);
+    }
+    @Override
+    protected void tearDown() throws Exception {
+        mKeepOpen.close();
+        mDbFile.delete();
+        super.tearDown();
+    }
+
+    // 只申请和释放引用, 几乎不做别的工作, 反映计数本身的争用
+    public void testRefCountContention() throws Exception {
+        run("refcount", new Operation() {
+            @Override
+            public void run(int seed) {
+                mDb.isReadOnly();
+            }
+        });
+    }
+    // 按主键查询一行, 反映真实查询中计数所占的比重
+    public void testQueryThroughput() throws Exception {
+        run("query", new Operation() {
+            @Override
+            public void run(int seed) {
+                final Cursor cursor = mDb.rawQuery("SELECT value FROM bench WHERE id = ?", new String[] { Integer.toString(seed % ROW_COUNT) });
+                try {
+                    cursor.moveToFirst();
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    private interface Operation {
+        void run(int seed);
+    }
+
+    private void run(String name, Operation operation) throws Exception {
+        for (int threadCount : THREAD_COUNTS) {
+            final long locked = measure(operation, threadCount, new ReentrantLock());
+            final long lockFree = measure(operation, threadCount, null);
+            Log.i(LOG_TAG, String.format(Locale.US, "%s threads=%d locked=%d ops/s lock-free=%d ops/s (%.2fx)",
+                    name, threadCount, locked, lockFree, locked > 0 ? (double) lockFree / locked : 0));
+            assertTrue(locked > 0);
+            assertTrue(lockFree > 0);
+        }
+    }
+    // lock不为null时模拟旧的实现: 申请和释放引用各加一次锁
+    private long measure(final Operation operation, int threadCount, final ReentrantLock lock) throws Exception {
+        final AtomicLong totalOps = new AtomicLong(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final Throwable[] failure = new Throwable[1];
+        for (int n = 0; n < threadCount; ++n) {
+            final int threadIndex = n;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        final long deadline = System.nanoTime() + RUN_MILLIS * 1000000L;
+                        int ops = 0;
+                        while ((ops & 63) != 0 || System.nanoTime() < deadline) {
+                            if (lock != null) {
+                                lock.lock();
+                                lock.unlock();
+                            }
+                            operation.run(threadIndex * 7919 + ops);
+                            if (lock != null) {
+                                lock.lock();
+                                lock.unlock();
+                            }
+                            ++ops;
+                        }
+                        totalOps.addAndGet(ops);
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "benchmark-" + n).start();
+        }
+
+        start.countDown();
+        done.await();
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+
+        return totalOps.get() * 1000 / RUN_MILLIS;
+    }
+}
@@ -0,0 +1,69 @@
+package com.common.sys;
+
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelTaskTest extends AndroidTestCase {
+    private static final ParallelTask.Merger<Long> SUM = new ParallelTask.Merger<Long>() {
+        @Override
+        public Long merge(Long left, Long right) {
+            return left + right;
+        }
+    };
+
+    public void testSum() throws Exception {
+        final ParallelTask<Long> task = PooledThread.parallel(0, 1000000, 10000, new ParallelTask.RangeTask<Long>() {
+            @Override
+            public Long compute(ParallelTask<Long> task, long from, long to) {
+                long sum = 0;
+                for (long n = from; n < to; ++n) {
+                    sum += n;
+                }
+                return sum;
+            }
+        }, SUM);
+
+        assertEquals(Long.valueOf(999999L * 1000000 / 2), task.get());
+    }
+    // 取消后立即完成, 不等待正在计算的段; cancel(true)中断正在计算的线程.
+    public void testCancelCompletesWithoutWaitingForChunks() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger interruptedCount = new AtomicInteger(0);
+        final ParallelTask<Long> task = PooledThread.parallel(0, 100, 1, new ParallelTask.RangeTask<Long>() {
+            @Override
+            public Long compute(ParallelTask<Long> task, long from, long to) {
+                started.countDown();
+                try {
+                    Thread.sleep(10 * 1000);
+                } catch (InterruptedException e) {
+                    interruptedCount.incrementAndGet();
+                }
+                return from;
+            }
+        }, SUM);
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(task.cancel(true));
+        assertFalse(task.cancel(true));
+        assertTrue(task.isDone());
+        assertTrue(task.isCancelled());
+
+        final long startTime = System.nanoTime();
+        try {
+            task.get();
+            fail();
+        } catch (CancellationException e) {
+
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) < 1000);
+
+        final long wallTime = task.getWallTime();
+        Thread.sleep(100);
+        assertEquals(wallTime, task.getWallTime());
+        assertTrue(interruptedCount.get() > 0);
+    }
+}
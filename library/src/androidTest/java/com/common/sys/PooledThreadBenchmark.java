@@ -0,0 +1,63 @@
+package com.common.sys;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同名队列的吞吐量. 同样数量的空任务轮流提交到不同数量的队列中, 队列越多可以并行的越多.
+ * 结果输出到logcat(tag为benchmark), 不对快慢做断言.
+ */
+public class PooledThreadBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "benchmark";
+    private static final int[] QUEUE_COUNTS = { 1, 4, 16, 64 };
+    private static final int TASK_COUNT = 100000;
+    private static final int ROUND_COUNT = 3;
+
+    public void testQueueThroughput() throws Exception {
+        final Runnable work = new Runnable() {
+            @Override
+            public void run() {
+                // 一点点计算, 避免任务本身完全是空的
+                long value = 0;
+                for (int n = 0; n < 100; ++n) {
+                    value += n * n;
+                }
+                if (value < 0) {
+                    throw new AssertionError();
+                }
+            }
+        };
+
+        for (int queueCount : QUEUE_COUNTS) {
+            long best = 0;
+            for (int round = 0; round < ROUND_COUNT; ++round) {
+                best = Math.max(best, measure(work, queueCount));
+            }
+            Log.i(LOG_TAG, String.format(Locale.US, "queues=%d %d tasks/s, %d queues alive after drain",
+                    queueCount, best, PooledThread.getTaskQueueCount()));
+            assertTrue(best > 0);
+        }
+    }
+
+    private long measure(Runnable work, int queueCount) throws Exception {
+        final ArrayList<Future<?>> lastTasks = new ArrayList<Future<?>>();
+        final long startTime = System.nanoTime();
+        for (int n = 0; n < TASK_COUNT; ++n) {
+            final Future<?> future = PooledThread.runInQueue(work, "pooled-thread-benchmark-" + (n % queueCount));
+            if (n >= TASK_COUNT - queueCount) {
+                lastTasks.add(future);
+            }
+        }
+        // 同一队列中的任务按顺序执行, 每个队列的最后一个任务完成时整个队列都已完成
+        for (Future<?> each : lastTasks) {
+            each.get(60, TimeUnit.SECONDS);
+        }
+        final long elapsed = System.nanoTime() - startTime;
+        return TASK_COUNT * 1000000000L / Math.max(1, elapsed);
+    }
+}
@@ -0,0 +1,65 @@
+package com.common.sys;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class PooledThreadTest extends AndroidTestCase {
+    private static final long IDLE_TIMEOUT = 5000;
+
+    public void testQueueKeepsOrderAcrossRetirement() throws Exception {
+        final int queueCount = 16;
+        final int taskCount = 2000;
+        final int[] next = new int[queueCount];
+        final AtomicBoolean outOfOrder = new AtomicBoolean(false);
+        final ArrayList<Future<?>> lastTasks = new ArrayList<Future<?>>();
+
+        for (int n = 0; n < taskCount; ++n) {
+            for (int queue = 0; queue < queueCount; ++queue) {
+                final int index = queue;
+                final int expected = n;
+                final Future<?> future = PooledThread.runInQueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (next[index] != expected) {
+                            outOfOrder.set(true);
+                        }
+                        next[index] = expected + 1;
+                    }
+                }, "pooled-thread-test-" + queue);
+
+                if (n == taskCount - 1) {
+                    lastTasks.add(future);
+                }
+            }
+            // 不时让队列排空退役, 之后的任务进入新队列
+            if (n % 100 == 0) {
+                Thread.sleep(1);
+            }
+        }
+
+        for (Future<?> each : lastTasks) {
+            each.get(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        assertFalse(outOfOrder.get());
+    }
+    public void testIdleQueuesAreRemoved() throws Exception {
+        for (int n = 0; n < 100; ++n) {
+            PooledThread.runInQueue(new Runnable() {
+                @Override
+                public void run() {
+
+                }
+            }, "pooled-thread-idle-" + n).get(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        final long deadline = System.currentTimeMillis() + IDLE_TIMEOUT;
+        while (PooledThread.getTaskQueueCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, PooledThread.getTaskQueueCount());
+    }
+}
@@ -0,0 +1,55 @@
+package com.common.sys;
+
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PriorityExecutorTest extends AndroidTestCase {
+    private static final int MAX_THREAD_COUNT = 4;
+
+    // 只有一个空闲线程时连续提交一批会阻塞的任务, 每个任务都应该分到一个线程, 不能因为唤醒落空而排队等待.
+    public void testBurstStartsWorkersBeyondIdleThreads() throws Exception {
+        for (int round = 0; round < 20; ++round) {
+            final PriorityExecutor executor = new PriorityExecutor("priority-executor-test", 1, MAX_THREAD_COUNT, 256);
+            try {
+                waitUntilIdle(executor);
+
+                final CountDownLatch started = new CountDownLatch(MAX_THREAD_COUNT);
+                final CountDownLatch release = new CountDownLatch(1);
+                for (int n = 0; n < MAX_THREAD_COUNT; ++n) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            started.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+
+                            }
+                        }
+                    }, PooledThread.Priority.NORMAL);
+                }
+
+                final boolean allStarted = started.await(2, TimeUnit.SECONDS);
+                release.countDown();
+                assertTrue("round " + round + ": " + started.getCount() + " tasks left waiting", allStarted);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static void waitUntilIdle(PriorityExecutor executor) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, PooledThread.Priority.NORMAL);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        // 让线程回到等待状态
+        Thread.sleep(50);
+    }
+}
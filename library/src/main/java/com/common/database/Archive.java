@@ -1,29 +1,47 @@
 package com.common.database;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 
-import android.content.ContentValues;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 
 import com.common.sys.ThreadSafe;
 
 
 public class Archive implements ThreadSafe {
 	private static final int DB_VERSION_FIRST = 1;
+	// 旧版本直接用Java序列化保存记录, 以流的魔数0xACED开头.
+	private static final int JAVA_SERIALIZATION_TAG = 0xAC;
+	private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+	private static final int DEFAULT_CACHE_SIZE = 256 * 1024;
+	// 一次查询列出所有记录的名字, 列表和字典记录从表名中去掉前缀
+	private static final String SQL_LIST_RECORDS = "SELECT name FROM objects"
+			+ " UNION SELECT substr(name, 6) FROM sqlite_master WHERE type = 'table' AND name GLOB 'list-*'"
+			+ " UNION SELECT substr(name, 5) FROM sqlite_master WHERE type = 'table' AND name GLOB 'map-*'";
+	private static final String SQL_LIST_CONTAINER_TABLES = "SELECT name FROM sqlite_master WHERE type = 'table' AND (name GLOB 'list-*' OR name GLOB 'map-*')";
 	private static final ScheduledExecutorService mDbWriter = Executors.newSingleThreadScheduledExecutor();
+	private static final ThreadLocal<ArchiveOutput> mOutputPool = new ThreadLocal<ArchiveOutput>() {
+		@Override
+		protected ArchiveOutput initialValue() {
+			return new ArchiveOutput(256);
+		}
+	};
 	private final ManagedDatabase mDb;
+	private final CopyOnWriteArrayList<ArchiveCodec> mCodecs = new CopyOnWriteArrayList<ArchiveCodec>();
+	private final ArchiveCache mCache = new ArchiveCache(DEFAULT_CACHE_SIZE, false);
 
 	// ### 构造函数 ###
 	public Archive(String archiveUri) {
@@ -31,7 +49,8 @@ public class Archive implements ThreadSafe {
 	}
 	public Archive(String archiveUri, String backupUri) {
 		mDb = new ManagedDatabase(archiveUri, backupUri);
-		
+		mCodecs.add(new BinaryCodec());
+
 		asyncWriteInTransaction(new WriteTask() {
 			@Override
 			public boolean write(ManagedDatabase db) {
@@ -45,13 +64,51 @@ public class Archive implements ThreadSafe {
 	}
 
 	// ### 方法 ###
+	/**
+	 * 注册编码器, 写入时优先使用后注册的编码器, 都不能处理的对象使用Java序列化.
+	 * 读取已有记录需要的编码器必须在第一次读取之前注册.
+	 */
+	public void registerCodec(ArchiveCodec codec) {
+		assert codec.getTag() > 0 && codec.getTag() < 128;
+		mCodecs.add(0, codec);
+	}
+	/**
+	 * 设置readObject()缓存的上限(序列化后的字节数), 0表示不缓存. keepObjects为true时缓存反序列化后的对象,
+	 * 读取时不再解码, 但所有调用方拿到的是同一个实例, 只适合不会被修改的对象.
+	 */
+	public void setCacheLimit(int maxBytes, boolean keepObjects) {
+		mCache.setLimit(Math.max(0, maxBytes), keepObjects);
+	}
+	public int getCacheSize() {
+		return mCache.getSize();
+	}
+	public long getCacheHitCount() {
+		return mCache.getHitCount();
+	}
+	public long getCacheMissCount() {
+		return mCache.getMissCount();
+	}
+	public long getCacheEvictionCount() {
+		return mCache.getEvictionCount();
+	}
 	public <T extends Serializable> T readObject(String name, T defautObject) {
 		final T readObject = readObject(name);
 		return readObject != null ? readObject : defautObject; 
 	}
+	@SuppressWarnings("unchecked")
 	public <T extends Serializable> T readObject(String name) {
+		final ArchiveCache.Entry entry = mCache.get(name);
+		if (entry != null) {
+			return entry.mObject != null ? (T) entry.mObject : this.<T>objectFromBytes(entry.mBytes);
+		}
+
+		final long generation = mCache.getGeneration();
 		final byte[] bytes = readObjectBytes(mDb, name);
-		return objectFromBytes(bytes);
+		final T object = objectFromBytes(bytes);
+		if (object != null) {
+			mCache.putLoaded(name, bytes, object, generation);
+		}
+		return object;
 	}
 	public void beginBatchWrite() {
 		asyncWrite(new WriteTask() {
@@ -76,6 +133,8 @@ public class Archive implements ThreadSafe {
 			@Override
 			public boolean write(ManagedDatabase db) {
 				db.endTransaction();
+				// 批量写入可能整体回滚, 缓存中提交过的记录不再可信.
+				mCache.clear();
 				return true;
 			}
 		});
@@ -95,11 +154,23 @@ public class Archive implements ThreadSafe {
 	}
 	public Future<Boolean> writeObject(final String name, Serializable object) {
 		final byte[] bytes = objectToBytes(object);
-		return asyncWriteInTransaction(new WriteTask() {
+		final ArchiveCache.Entry entry = mCache.beginWrite(name, bytes, object);
+		return asyncWrite(new WriteTask() {
 			@Override
 			public boolean write(ManagedDatabase db) {
-				writeObjectBytes(db, name, bytes);
-				return true;
+				boolean succeed = false;
+				try {
+					succeed = writeInTransaction(db, new WriteTask() {
+						@Override
+						public boolean write(ManagedDatabase db) {
+							writeObjectBytes(db, name, bytes);
+							return true;
+						}
+					});
+					return succeed;
+				} finally {
+					mCache.endWrite(name, entry, succeed);
+				}
 			}
 		});
 	}
@@ -116,47 +187,232 @@ public class Archive implements ThreadSafe {
 			return false;
 		}
 	}
-	public <T extends Serializable> List<T> readList(String name) { 
-		// TODO
-		return null;
+	/**
+	 * 返回的列表在访问时才按页从数据库中读取元素, 列表的长度在调用时确定. 记录不存在时返回null.
+	 */
+	public <T extends Serializable> List<T> readList(String name) {
+		final int size = readListSize(mDb, name);
+		if (size < 0)
+			return null;
+
+		return new PagedList<T>(name, size);
 	}
 	public <T extends Serializable> Future<Boolean> writeList(final String name, List<T> list) {
-		// TODO
-		return null;
+		final ArrayList<byte[]> itemBytesList = new ArrayList<byte[]>(list.size());
+		for (T item : list) {
+			itemBytesList.add(objectToBytes(item));
+		}
+		return asyncWriteInTransaction(new WriteTask() {
+			@Override
+			public boolean write(ManagedDatabase db) {
+				db.execSQL("DROP TABLE IF EXISTS " + ListTable.TABLE_NAME(name));
+				createListTable(db, name);
+
+				final ManagedDatabaseStatement statement = db.compileStatement(String.format(Locale.getDefault(), "INSERT INTO %1$s(\"%2$s\", %3$s) VALUES(?, ?)",
+						ListTable.TABLE_NAME(name),
+						ListTable.Columns.ITEM_INDEX,
+						ListTable.Columns.ITEM_STREAM));
+				try {
+					for (int n = 0; n < itemBytesList.size(); ++n) {
+						statement.bindLong(1, n);
+						statement.bindBlob(2, itemBytesList.get(n));
+						statement.executeInsert();
+					}
+				} finally {
+					statement.close();
+				}
+				return true;
+			}
+		});
 	}
 	public <T extends Serializable> T readListItem(final String name, int index) {
-		// TODO
-		return null;
+		final byte[] bytes = readListItemBytes(mDb, name, index);
+		return bytes != null ? this.<T>objectFromBytes(bytes) : null;
 	}
 	public Future<Boolean> addListItem(final String name, Serializable item) {
-		// TODO
-		return null;
+		final byte[] bytes = objectToBytes(item);
+		return asyncWriteInTransaction(new WriteTask() {
+			@Override
+			public boolean write(ManagedDatabase db) {
+				createListTable(db, name);
+				execCached(db, String.format(Locale.getDefault(), "INSERT INTO %1$s(\"%2$s\", %3$s) SELECT IFNULL(MAX(\"%2$s\"), -1) + 1, ? FROM %1$s",
+						ListTable.TABLE_NAME(name),
+						ListTable.Columns.ITEM_INDEX,
+						ListTable.Columns.ITEM_STREAM), new Object[] { bytes });
+				return true;
+			}
+		});
 	}
-	public Future<Boolean> addListItem(final String name, int index, Serializable item) {
-		// TODO
-		return null;
+	public Future<Boolean> addListItem(final String name, final int index, Serializable item) {
+		final byte[] bytes = objectToBytes(item);
+		return asyncWriteInTransaction(new WriteTask() {
+			@Override
+			public boolean write(ManagedDatabase db) {
+				createListTable(db, name);
+				if (index < 0 || index > readListSize(db, name))
+					return false;
+
+				shiftListItems(db, name, index, 1);
+				writeListItemBytes(db, name, index, bytes);
+				return true;
+			}
+		});
 	}
-	public Future<Boolean> replaceListItem(final String name, int index, Serializable item) {
-		// TODO
-		return null;
+	public Future<Boolean> replaceListItem(final String name, final int index, Serializable item) {
+		final byte[] bytes = objectToBytes(item);
+		return asyncWriteInTransaction(new WriteTask() {
+			@Override
+			public boolean write(ManagedDatabase db) {
+				if (index < 0 || index >= readListSize(db, name))
+					return false;
+
+				writeListItemBytes(db, name, index, bytes);
+				return true;
+			}
+		});
+	}
+	public Future<Boolean> eraseListItem(final String name, final int index) {
+		return asyncWriteInTransaction(new WriteTask() {
+			@Override
+			public boolean write(ManagedDatabase db) {
+				if (index < 0 || index >= readListSize(db, name))
+					return false;
+
+				execCached(db, String.format(Locale.getDefault(), "DELETE FROM %1$s WHERE \"%2$s\" = ?",
+						ListTable.TABLE_NAME(name),
+						ListTable.Columns.ITEM_INDEX), new Object[] { index });
+				shiftListItems(db, name, index + 1, -1);
+				return true;
+			}
+		});
 	}
-	public Future<Boolean> eraseListItem(final String name, int index) {
-		// TODO
+	public <T extends Serializable> T readMapItem(String name, String key) {
+		final byte[] bytes = readMapItemBytes(mDb, name, key);
+		return bytes != null ? this.<T>objectFromBytes(bytes) : null;
+	}
+	public Future<Boolean> writeMapItem(final String name, final String key, Serializable item) {
+		final byte[] bytes = objectToBytes(item);
+		return asyncWriteInTransaction(new WriteTask() {
+			@Override
+			public boolean write(ManagedDatabase db) {
+				createMapTable(db, name);
+				writeMapItemBytes(db, name, key, bytes);
+				return true;
+			}
+		});
+	}
+	public Future<Boolean> eraseMapItem(final String name, final String key) {
+		return asyncWriteInTransaction(new WriteTask() {
+			@Override
+			public boolean write(ManagedDatabase db) {
+				execCached(db, String.format(Locale.getDefault(), "DELETE FROM %1$s WHERE %2$s = ?",
+						MapTable.TABLE_NAME(name),
+						MapTable.Columns.ITEM_KEY), new Object[] { key });
+				return true;
+			}
+		});
+	}
+	public <T extends Serializable> Map<String, T> readMap(String name) {
+		final String sqlQuery = String.format(Locale.getDefault(), "SELECT %2$s, %3$s FROM %1$s",
+				MapTable.TABLE_NAME(name),
+				MapTable.Columns.ITEM_KEY,
+				MapTable.Columns.ITEM_STREAM);
+		Cursor cursor = null;
+		try {
+			cursor = mDb.rawQuery(sqlQuery, new String[0]);
+			final HashMap<String, T> map = new HashMap<String, T>();
+			while (cursor.moveToNext()) {
+				map.put(cursor.getString(0), this.<T>objectFromBytes(cursor.getBlob(1)));
+			}
+			return map;
+
+		} catch (Throwable e) {
+			e.printStackTrace();
+
+		} finally {
+			if (cursor != null) try {
+				cursor.close();
+			} catch (Throwable e) {
+
+			}
+		}
+
 		return null;
 	}
+	/**
+	 * 批量写入多条记录, 在同一个事务中提交.
+	 */
+	public Future<Boolean> writeObjects(Map<String, ? extends Serializable> objects) {
+		final ArrayList<String> names = new ArrayList<String>(objects.size());
+		final ArrayList<ArchiveCache.Entry> entries = new ArrayList<ArchiveCache.Entry>(objects.size());
+		for (Map.Entry<String, ? extends Serializable> each : objects.entrySet()) {
+			final byte[] bytes = objectToBytes(each.getValue());
+			names.add(each.getKey());
+			entries.add(mCache.beginWrite(each.getKey(), bytes, each.getValue()));
+		}
+		return asyncWrite(new WriteTask() {
+			@Override
+			public boolean write(ManagedDatabase db) {
+				boolean succeed = false;
+				try {
+					succeed = writeInTransaction(db, new WriteTask() {
+						@Override
+						public boolean write(ManagedDatabase db) {
+							for (int n = 0; n < names.size(); ++n) {
+								writeObjectBytes(db, names.get(n), entries.get(n).mBytes);
+							}
+							return true;
+						}
+					});
+					return succeed;
+				} finally {
+					for (int n = 0; n < names.size(); ++n) {
+						mCache.endWrite(names.get(n), entries.get(n), succeed);
+					}
+				}
+			}
+		});
+	}
 	public List<String> listRecords() {
-		final LinkedList<String> recordList = new LinkedList<String>();
-		fillObjectNames(mDb, recordList);
-		fillListNames(mDb, recordList);
-		fillMapNames(mDb, recordList);
+		final ArrayList<String> recordList = new ArrayList<String>();
+		Cursor cursor = null;
+		try {
+			cursor = mDb.rawQuery(SQL_LIST_RECORDS, new String[0]);
+			recordList.ensureCapacity(cursor.getCount());
+			while (cursor.moveToNext()) {
+				recordList.add(cursor.getString(0));
+			}
+
+		} catch (Throwable e) {
+			e.printStackTrace();
+
+		} finally {
+			if (cursor != null) try {
+				cursor.close();
+			} catch (Throwable e) {
+
+			}
+		}
 		return recordList;
 	}
 	public Future<Boolean> eraseRecord(final String name) {
-		return asyncWriteInTransaction(new WriteTask() {
+		final ArchiveCache.Entry entry = mCache.beginWrite(name, null, null);
+		return asyncWrite(new WriteTask() {
 			@Override
 			public boolean write(ManagedDatabase db) {
-				eraseRecordData(db, name);
-				return true;
+				boolean succeed = false;
+				try {
+					succeed = writeInTransaction(db, new WriteTask() {
+						@Override
+						public boolean write(ManagedDatabase db) {
+							eraseRecordData(db, name);
+							return true;
+						}
+					});
+					return succeed;
+				} finally {
+					mCache.endWrite(name, entry, succeed);
+				}
 			}
 		});
 	}
@@ -174,30 +430,55 @@ public class Archive implements ThreadSafe {
 		}
 	}
 	public Future<Boolean> eraseAll() {
-		return null;
+		return eraseByPrefix("");
 	}
 	public boolean eraseAllNow() {
-		return false;
+		final Future<Boolean> f = eraseAll();
+		while (true) try {
+			try {
+				final boolean succeed = f.get();
+				return succeed;
+			} catch (InterruptedException e) {
+				
+			}
+		} catch (Throwable e) {
+			return false;
+		}
 	}
-	
-	// ### 实现方法 ###
-	private Future<Boolean> asyncWriteInTransaction(final WriteTask task) {
+	/**
+	 * 在同一个事务中删除名字以prefix开头的所有记录, 包括列表和字典.
+	 */
+	public Future<Boolean> eraseByPrefix(final String prefix) {
+		final ArchiveCache.PrefixErase erase = mCache.beginErase(prefix);
 		return asyncWrite(new WriteTask() {
 			@Override
 			public boolean write(ManagedDatabase db) {
-				db.beginTransaction();
+				boolean succeed = false;
 				try {
-					final boolean succeed = task.write(db);
-					db.setTransactionSuccessful();
+					succeed = writeInTransaction(db, new WriteTask() {
+						@Override
+						public boolean write(ManagedDatabase db) {
+							eraseRecordsData(db, prefix);
+							return true;
+						}
+					});
 					return succeed;
-				} catch (Throwable e) {
-					return false;
 				} finally {
-					db.endTransaction();
+					mCache.endErase(erase, succeed);
 				}
 			}
 		});
 	}
+	
+	// ### 实现方法 ###
+	private Future<Boolean> asyncWriteInTransaction(final WriteTask task) {
+		return asyncWrite(new WriteTask() {
+			@Override
+			public boolean write(ManagedDatabase db) {
+				return writeInTransaction(db, task);
+			}
+		});
+	}
 	private Future<Boolean> asyncWrite(final WriteTask task) {
 		return mDbWriter.submit(new Callable<Boolean>() {
 			@Override
@@ -210,15 +491,33 @@ public class Archive implements ThreadSafe {
 			}
 		});
 	}
+	private static boolean writeInTransaction(ManagedDatabase db, WriteTask task) {
+		db.beginTransaction();
+		try {
+			final boolean succeed = task.write(db);
+			db.setTransactionSuccessful();
+			return succeed;
+		} catch (Throwable e) {
+			return false;
+		} finally {
+			db.endTransaction();
+		}
+	}
+	// 通过ManagedDatabase的语句缓存执行, 记录名等参数一律绑定, 不拼接到SQL中.
+	private static void execCached(ManagedDatabase db, String sql, Object[] bindArgs) {
+		final ManagedDatabaseStatement statement = db.obtainStatement(sql);
+		try {
+			statement.bindAllArgs(bindArgs);
+			statement.execute();
+		} finally {
+			statement.close();
+		}
+	}
 	private static byte[] readObjectBytes(ManagedDatabase db, String name) {
-		final String sqlQuery = String.format(Locale.getDefault(), "SELECT %2$s FROM %1$s WHERE %3$s == '%4$s'",
-				ObjectTable.TABLE_NAME,
-				ObjectTable.Columns.OBJECT_STREAM,
-				ObjectTable.Columns.OBJECT_NAME,
-				name);
 		Cursor cursor = null;
 		try {
-			cursor = db.rawQuery(sqlQuery, new String[0]);
+			// rawQuery()的语句由框架按连接缓存, SQL文本不变就不会重新编译.
+			cursor = db.rawQuery(ObjectTable.SQL_READ, new String[] { name });
 			if (cursor.moveToFirst()) {
  				final byte[] bytes = cursor.getBlob(0);
  				return bytes;
@@ -241,25 +540,80 @@ public class Archive implements ThreadSafe {
 		if (bytes == null) 
 			new RuntimeException();
 		
-		final ContentValues values = new ContentValues();
-		values.put(ObjectTable.Columns.OBJECT_NAME, name);
-		values.put(ObjectTable.Columns.OBJECT_STREAM, bytes);
-		db.insertWithOnConflict(ObjectTable.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+		execCached(db, ObjectTable.SQL_WRITE, new Object[] { name, bytes });
 	}
-	private static void fillObjectNames(ManagedDatabase db, List<String> nameList) {
-		final String sqlQuery = String.format(Locale.getDefault(), "SELECT %2$s FROM %1$s",
-				ObjectTable.TABLE_NAME,
-				ObjectTable.Columns.OBJECT_NAME);
+	private static void eraseRecordData(ManagedDatabase db, String name) {
+		execCached(db, ObjectTable.SQL_ERASE, new Object[] { name });
+		
+		final String sqlDelList = "DROP TABLE IF EXISTS " + ListTable.TABLE_NAME(name);
+		db.execSQL(sqlDelList);
+		
+		final String sqlDelMap = "DROP TABLE IF EXISTS " + MapTable.TABLE_NAME(name);
+		db.execSQL(sqlDelMap);
+	}
+	/**
+	 * 以prefix开头的名字都落在[prefix, 返回值)之内, 名字列的主键索引可以直接按范围查找.
+	 * SQLite按UTF-8字节比较文本, 与码点顺序一致, 所以按码点而不是char递增最后一个字符; 没有上界时返回null.
+	 */
+	private static String prefixUpperBound(String prefix) {
+		int end = prefix.length();
+		while (end > 0) {
+			final int codePoint = prefix.codePointBefore(end);
+			end -= Character.charCount(codePoint);
+			if (codePoint < Character.MAX_CODE_POINT) {
+				// 跳过代理区, 它们不是合法的码点
+				final int next = codePoint + 1 == Character.MIN_SURROGATE ? Character.MAX_SURROGATE + 1 : codePoint + 1;
+				return new StringBuilder(end + 2).append(prefix, 0, end).appendCodePoint(next).toString();
+			}
+		}
+		return null;
+	}
+	private static void eraseRecordsData(ManagedDatabase db, String prefix) {
+		if (prefix.length() == 0) {
+			execCached(db, ObjectTable.SQL_ERASE_ALL, new Object[0]);
+		} else {
+			final String upperBound = prefixUpperBound(prefix);
+			if (upperBound != null) {
+				execCached(db, ObjectTable.SQL_ERASE_RANGE, new Object[] { prefix, upperBound });
+			} else {
+				execCached(db, ObjectTable.SQL_ERASE_FROM, new Object[] { prefix });
+			}
+		}
+
+		final ArrayList<String> tableNames = new ArrayList<String>();
 		Cursor cursor = null;
 		try {
-			cursor = db.rawQuery(sqlQuery, new String[0]);
+			cursor = db.rawQuery(SQL_LIST_CONTAINER_TABLES, new String[0]);
 			while (cursor.moveToNext()) {
-				nameList.add(cursor.getString(0));
+				tableNames.add(cursor.getString(0));
 			}
-			
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+
+		for (String tableName : tableNames) {
+			if (tableName.startsWith(ListTable.TABLE_NAME_PREFIX + prefix) || tableName.startsWith(MapTable.TABLE_NAME_PREFIX + prefix)) {
+				db.execSQL("DROP TABLE IF EXISTS " + quoteIdentifier(tableName));
+			}
+		}
+	}
+	private static byte[] readListItemBytes(ManagedDatabase db, String name, int index) {
+		final String sqlQuery = String.format(Locale.getDefault(), "SELECT %2$s FROM %1$s WHERE \"%3$s\" = ?",
+				ListTable.TABLE_NAME(name),
+				ListTable.Columns.ITEM_STREAM,
+				ListTable.Columns.ITEM_INDEX);
+		Cursor cursor = null;
+		try {
+			cursor = db.rawQuery(sqlQuery, new String[] { String.valueOf(index) });
+			if (cursor.moveToFirst()) {
+				return cursor.getBlob(0);
+			}
+
 		} catch (Throwable e) {
 			e.printStackTrace();
-			
+
 		} finally {
 			if (cursor != null) try {
 				cursor.close();
@@ -267,39 +621,30 @@ public class Archive implements ThreadSafe {
 
 			}
 		}
-	}
-	private static void eraseRecordData(ManagedDatabase db, String name) {
-		final String sqlDelObj = String.format(Locale.getDefault(), "DELETE FROM %1$s WHERE %2$s == '%3$s'", 
-				ObjectTable.TABLE_NAME,
-				ObjectTable.Columns.OBJECT_NAME,
-				name);
-		db.execSQL(sqlDelObj);
-		
-		final String sqlDelList = "DROP TABLE IF EXISTS " + ListTable.TABLE_NAME(name);
-		db.execSQL(sqlDelList);
-		
-		final String sqlDelMap = "DROP TABLE IF EXISTS " + MapTable.TABLE_NAME(name);
-		db.execSQL(sqlDelMap);
-	}
-	private static byte[] readListItemBytes(ManagedDatabase db, int index) {
-		// TODO
+
 		return null;
 	}
-	private static void writeListItemBytes(ManagedDatabase db, int index, byte[] bytes) {
-		// TODO
-	}
-	private static void fillListNames(ManagedDatabase db, List<String> nameList) {
-		final String sqlQuery = String.format(Locale.getDefault(), "SELECT name FROM sqlite_master WHERE type='table' AND name GLOB 'list-*'");
+	private static void writeListItemBytes(ManagedDatabase db, String name, int index, byte[] bytes) {
+		execCached(db, String.format(Locale.getDefault(), "INSERT OR REPLACE INTO %1$s(\"%2$s\", %3$s) VALUES(?, ?)",
+				ListTable.TABLE_NAME(name),
+				ListTable.Columns.ITEM_INDEX,
+				ListTable.Columns.ITEM_STREAM), new Object[] { index, bytes });
+	}
+	// 返回列表的长度, 列表不存在时返回-1. 元素序号从0开始连续排列, 借助序号上的唯一索引, 无需遍历整张表.
+	private static int readListSize(ManagedDatabase db, String name) {
+		final String sqlQuery = String.format(Locale.getDefault(), "SELECT IFNULL(MAX(\"%2$s\"), -1) + 1 FROM %1$s",
+				ListTable.TABLE_NAME(name),
+				ListTable.Columns.ITEM_INDEX);
 		Cursor cursor = null;
 		try {
 			cursor = db.rawQuery(sqlQuery, new String[0]);
-			while (cursor.moveToNext()) {
-				nameList.add(cursor.getString(0));
+			if (cursor.moveToFirst()) {
+				return cursor.getInt(0);
 			}
-			
+
 		} catch (Throwable e) {
-			e.printStackTrace();
-			
+			// 表不存在
+
 		} finally {
 			if (cursor != null) try {
 				cursor.close();
@@ -307,26 +652,42 @@ public class Archive implements ThreadSafe {
 
 			}
 		}
+
+		return -1;
+	}
+	private static void shiftListItems(ManagedDatabase db, String name, int fromIndex, int delta) {
+		// 先把需要移动的元素换到负数区间再换回来, 避免移动过程中违反序号的唯一约束.
+		execCached(db, String.format(Locale.getDefault(), "UPDATE %1$s SET \"%2$s\" = -(\"%2$s\" + ?) - 1 WHERE \"%2$s\" >= ?",
+				ListTable.TABLE_NAME(name),
+				ListTable.Columns.ITEM_INDEX), new Object[] { delta, fromIndex });
+		execCached(db, String.format(Locale.getDefault(), "UPDATE %1$s SET \"%2$s\" = -\"%2$s\" - 1 WHERE \"%2$s\" < 0",
+				ListTable.TABLE_NAME(name),
+				ListTable.Columns.ITEM_INDEX), new Object[0]);
+	}
+	private static void createListTable(ManagedDatabase db, String name) {
+		final String sqlCreate = String.format(Locale.getDefault(), "CREATE TABLE IF NOT EXISTS %1$s("
+				+ "\"%2$s\" INTEGER PRIMARY KEY, "
+				+ "%3$s BLOB)",
+				ListTable.TABLE_NAME(name),
+				ListTable.Columns.ITEM_INDEX,
+				ListTable.Columns.ITEM_STREAM);
+		db.execSQL(sqlCreate);
 	}
-	private static byte[] readMapItemBytes(ManagedDatabase db, String key) {
-		// TODO
-		return null;
-	}
-	private static void writeMapItemBytes(ManagedDatabase db, String key, byte[] bytes) {
-		// TODO
-	}
-	private static void fillMapNames(ManagedDatabase db, List<String> nameList) {
-		final String sqlQuery = String.format(Locale.getDefault(), "SELECT name FROM sqlite_master WHERE type='table' AND name GLOB 'map-*'");
+	private static byte[] readMapItemBytes(ManagedDatabase db, String name, String key) {
+		final String sqlQuery = String.format(Locale.getDefault(), "SELECT %2$s FROM %1$s WHERE %3$s = ?",
+				MapTable.TABLE_NAME(name),
+				MapTable.Columns.ITEM_STREAM,
+				MapTable.Columns.ITEM_KEY);
 		Cursor cursor = null;
 		try {
-			cursor = db.rawQuery(sqlQuery, new String[0]);
-			while (cursor.moveToNext()) {
-				nameList.add(cursor.getString(0));
+			cursor = db.rawQuery(sqlQuery, new String[] { key });
+			if (cursor.moveToFirst()) {
+				return cursor.getBlob(0);
 			}
-			
+
 		} catch (Throwable e) {
 			e.printStackTrace();
-			
+
 		} finally {
 			if (cursor != null) try {
 				cursor.close();
@@ -334,50 +695,87 @@ public class Archive implements ThreadSafe {
 
 			}
 		}
+
+		return null;
+	}
+	private static void writeMapItemBytes(ManagedDatabase db, String name, String key, byte[] bytes) {
+		execCached(db, String.format(Locale.getDefault(), "INSERT OR REPLACE INTO %1$s(%2$s, %3$s) VALUES(?, ?)",
+				MapTable.TABLE_NAME(name),
+				MapTable.Columns.ITEM_KEY,
+				MapTable.Columns.ITEM_STREAM), new Object[] { key, bytes });
 	}
-	private static byte[] objectToBytes(Serializable object) {
-		byte[] objBytes = null;
-		ObjectOutputStream outObjStream = null;
+	private static void createMapTable(ManagedDatabase db, String name) {
+		final String sqlCreate = String.format(Locale.getDefault(), "CREATE TABLE IF NOT EXISTS %1$s("
+				+ "%2$s TEXT PRIMARY KEY, "
+				+ "%3$s BLOB)",
+				MapTable.TABLE_NAME(name),
+				MapTable.Columns.ITEM_KEY,
+				MapTable.Columns.ITEM_STREAM);
+		db.execSQL(sqlCreate);
+	}
+	private byte[] objectToBytes(Serializable object) {
+		final ArchiveOutput out = mOutputPool.get();
 		try {
-			final ByteArrayOutputStream outByteStream = new ByteArrayOutputStream();
-			outObjStream = new ObjectOutputStream(outByteStream);
+			for (ArchiveCodec codec : mCodecs) {
+				if (codec.canEncode(object) == false)
+					continue;
+
+				out.reset();
+				out.writeByte(codec.getTag());
+				out.writeByte(codec.getVersion());
+				try {
+					codec.encode(object, out);
+					return out.toByteArray();
+				} catch (Throwable e) {
+					// 对象中含有该编码器不支持的内容, 换下一个编码器
+				}
+			}
+
+			out.reset();
+			final ObjectOutputStream outObjStream = new ObjectOutputStream(out);
 			outObjStream.writeObject(object);
-			objBytes = outByteStream.toByteArray();
-			
+			outObjStream.flush();
+			return out.toByteArray();
+
 		} catch (Throwable e) {
 			e.printStackTrace();
-			
+			return null;
+
 		} finally {
-			if (outObjStream != null) try {
-				outObjStream.close();
-				
-			} catch (Throwable e) {
-				
+			// 不长期持有编码过大对象时扩充的缓冲区
+			if (out.capacity() > MAX_POOLED_BUFFER_SIZE) {
+				mOutputPool.remove();
 			}
 		}
-
-		return objBytes;
 	}
 	@SuppressWarnings("unchecked")
-	private static <T extends Serializable> T objectFromBytes(byte[] bytes) {
-		ObjectInputStream inObjStream = null;
+	private <T extends Serializable> T objectFromBytes(byte[] bytes) {
+		if (bytes == null || bytes.length < 2)
+			return null;
+
 		try {
-			inObjStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
-			return (T) inObjStream.readObject();
-			
+			final int tag = bytes[0] & 0xFF;
+			if (tag == JAVA_SERIALIZATION_TAG) {
+				return (T) new ObjectInputStream(new ArchiveInput(bytes, 0, bytes.length)).readObject();
+			}
+
+			for (ArchiveCodec codec : mCodecs) {
+				if (codec.getTag() == tag) {
+					return (T) codec.decode(new ArchiveInput(bytes, 2, bytes.length - 2), bytes[1] & 0xFF);
+				}
+			}
+			throw new IOException("archive codec is not registered: " + tag);
+
 		} catch (Throwable e) {
 			e.printStackTrace();
-			
-		} finally {
-			if (inObjStream != null) try {
-				inObjStream.close();
-			} catch (Throwable e) {
-				
-			}
 		}
 
 		return null;
 	}
+	// 表名无法作为参数绑定, 按标识符的规则加上双引号. 与旧版本用单引号创建的表是同一个名字.
+	private static String quoteIdentifier(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
 	private static void createObjectTable(ManagedDatabase db) {
 		final String sqlCreate = String.format(Locale.getDefault(), "CREATE TABLE IF NOT EXISTS %1$s("
 				+ "%2$s TEXT PRIMARY KEY, "
@@ -396,10 +794,19 @@ public class Archive implements ThreadSafe {
 			public static final String OBJECT_NAME = "name";
 			public static final String OBJECT_STREAM = "stream";
 		}
+
+		public static final String SQL_READ = "SELECT " + Columns.OBJECT_STREAM + " FROM " + TABLE_NAME + " WHERE " + Columns.OBJECT_NAME + " = ?";
+		public static final String SQL_WRITE = "INSERT OR REPLACE INTO " + TABLE_NAME + "(" + Columns.OBJECT_NAME + ", " + Columns.OBJECT_STREAM + ") VALUES(?, ?)";
+		public static final String SQL_ERASE = "DELETE FROM " + TABLE_NAME + " WHERE " + Columns.OBJECT_NAME + " = ?";
+		public static final String SQL_ERASE_RANGE = "DELETE FROM " + TABLE_NAME + " WHERE " + Columns.OBJECT_NAME + " >= ? AND " + Columns.OBJECT_NAME + " < ?";
+		public static final String SQL_ERASE_FROM = "DELETE FROM " + TABLE_NAME + " WHERE " + Columns.OBJECT_NAME + " >= ?";
+		public static final String SQL_ERASE_ALL = "DELETE FROM " + TABLE_NAME;
 	}
 	private static class ListTable {
+		public static final String TABLE_NAME_PREFIX = "list-";
+
 		public static String TABLE_NAME(String name) {
-			return String.format(Locale.getDefault(), "'list-%s'", name);
+			return quoteIdentifier(TABLE_NAME_PREFIX + name);
 		}
 		public static class Columns {
 			public static final String ITEM_INDEX = "index";
@@ -407,8 +814,10 @@ public class Archive implements ThreadSafe {
 		}
 	}
 	private static class MapTable {
+		public static final String TABLE_NAME_PREFIX = "map-";
+
 		public static String TABLE_NAME(String name) {
-			return String.format(Locale.getDefault(), "'map-%s'", name);
+			return quoteIdentifier(TABLE_NAME_PREFIX + name);
 		}
 		public static class Columns {
 			public static final String ITEM_KEY = "key";
@@ -418,4 +827,59 @@ public class Archive implements ThreadSafe {
 	private static interface WriteTask {
 		boolean write(ManagedDatabase db);
 	}
+	private class PagedList<T extends Serializable> extends AbstractList<T> {
+		private static final int PAGE_SIZE = 64;
+		private final String mName;
+		private final int mSize;
+		private final ArrayList<T> mPage = new ArrayList<T>(PAGE_SIZE);
+		private int mPageStart = -1;
+
+		public PagedList(String name, int size) {
+			mName = name;
+			mSize = size;
+		}
+
+		@Override
+		public synchronized T get(int location) {
+			if (location < 0 || location >= mSize)
+				throw new IndexOutOfBoundsException();
+
+			if (mPageStart < 0 || location < mPageStart || location >= mPageStart + mPage.size()) {
+				loadPage(location - location % PAGE_SIZE);
+			}
+			final int offset = location - mPageStart;
+			return offset < mPage.size() ? mPage.get(offset) : null;
+		}
+		@Override
+		public int size() {
+			return mSize;
+		}
+
+		private void loadPage(int pageStart) {
+			final String sqlQuery = String.format(Locale.getDefault(), "SELECT %2$s FROM %1$s WHERE \"%3$s\" >= ? AND \"%3$s\" < ? ORDER BY \"%3$s\"",
+					ListTable.TABLE_NAME(mName),
+					ListTable.Columns.ITEM_STREAM,
+					ListTable.Columns.ITEM_INDEX);
+			mPage.clear();
+			mPageStart = pageStart;
+
+			Cursor cursor = null;
+			try {
+				cursor = mDb.rawQuery(sqlQuery, new String[] { String.valueOf(pageStart), String.valueOf(pageStart + PAGE_SIZE) });
+				while (cursor.moveToNext()) {
+					mPage.add(Archive.this.<T>objectFromBytes(cursor.getBlob(0)));
+				}
+
+			} catch (Throwable e) {
+				e.printStackTrace();
+
+			} finally {
+				if (cursor != null) try {
+					cursor.close();
+				} catch (Throwable e) {
+
+				}
+			}
+		}
+	}
 }
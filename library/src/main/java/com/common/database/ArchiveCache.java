@@ -0,0 +1,189 @@
+package com.common.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Archive的读缓存, 按记录序列化后的字节数限制大小, 超出时淘汰最久未访问的记录.
+ *
+ * 写操作在提交给写线程之前就登记为待写入, 提交完成之前读到的都是待写入的值; 提交成功后才放入缓存.
+ * 查询数据库得到的值只有在查询期间没有发生过写操作时才放入缓存, 所以不会把写入之前的旧值缓存下来.
+ */
+class ArchiveCache {
+	private static final Entry ERASED = new Entry(null, null);
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final HashMap<String, Entry> mPendingEntries = new HashMap<String, Entry>();
+	private final ArrayList<PrefixErase> mPendingErases = new ArrayList<PrefixErase>();
+	private int mMaxSize;
+	private boolean mKeepObjects;
+	private int mSize = 0;
+	private long mGeneration = 0;
+	private long mWriteSequence = 0;
+	private long mHitCount = 0;
+	private long mMissCount = 0;
+	private long mEvictionCount = 0;
+
+	// ### 构造函数 ###
+	public ArchiveCache(int maxSize, boolean keepObjects) {
+		mMaxSize = maxSize;
+		mKeepObjects = keepObjects;
+	}
+
+	// ### 属性 ###
+	public synchronized int getSize() {
+		return mSize;
+	}
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+	public synchronized long getEvictionCount() {
+		return mEvictionCount;
+	}
+	public synchronized long getGeneration() {
+		return mGeneration;
+	}
+
+	// ### 方法 ###
+	public synchronized void setLimit(int maxSize, boolean keepObjects) {
+		if (mKeepObjects != keepObjects) {
+			mKeepObjects = keepObjects;
+			clear();
+		}
+		mMaxSize = maxSize;
+		trimToSize();
+	}
+	// 返回null表示缓存中没有这条记录, 返回的Entry中mBytes为null表示记录已被删除.
+	public synchronized Entry get(String name) {
+		Entry entry = mPendingEntries.get(name);
+		final PrefixErase erase = findPendingErase(name);
+		if (erase != null && (entry == null || entry.mSequence < erase.mSequence)) {
+			entry = ERASED;
+		} else if (entry == null) {
+			entry = mEntries.get(name);
+		}
+
+		if (entry != null) {
+			++mHitCount;
+		} else {
+			++mMissCount;
+		}
+		return entry;
+	}
+	public synchronized void putLoaded(String name, byte[] bytes, Object object, long generation) {
+		if (generation != mGeneration || mPendingEntries.containsKey(name))
+			return;
+
+		put(name, new Entry(bytes, mKeepObjects ? object : null));
+	}
+	public synchronized Entry beginWrite(String name, byte[] bytes, Object object) {
+		++mGeneration;
+		remove(name);
+
+		final Entry entry = new Entry(bytes, mKeepObjects ? object : null);
+		entry.mSequence = ++mWriteSequence;
+		mPendingEntries.put(name, entry);
+		return entry;
+	}
+	// 删除名字以prefix开头的所有记录, 空字符串表示全部删除.
+	public synchronized PrefixErase beginErase(String prefix) {
+		++mGeneration;
+		removeByPrefix(prefix);
+
+		final PrefixErase erase = new PrefixErase(prefix, ++mWriteSequence);
+		mPendingErases.add(erase);
+		return erase;
+	}
+	public synchronized void endErase(PrefixErase erase, boolean committed) {
+		mPendingErases.remove(erase);
+		if (committed) {
+			// 排在删除之前的写操作可能已经把记录放回了缓存
+			removeByPrefix(erase.mPrefix);
+		}
+	}
+	public synchronized void endWrite(String name, Entry entry, boolean committed) {
+		if (mPendingEntries.get(name) != entry)
+			return;
+
+		mPendingEntries.remove(name);
+		if (committed && entry.mBytes != null) {
+			put(name, entry);
+		}
+	}
+	// 只清空已提交的记录, 待写入的记录在各自的写操作完成时移除.
+	public synchronized void clear() {
+		++mGeneration;
+		mEntries.clear();
+		mSize = 0;
+	}
+
+	// ### 实现函数 ###
+	private void put(String name, Entry entry) {
+		if (entry.mBytes.length > mMaxSize)
+			return;
+
+		remove(name);
+		mEntries.put(name, entry);
+		mSize += entry.mBytes.length;
+		trimToSize();
+	}
+	private void remove(String name) {
+		final Entry entry = mEntries.remove(name);
+		if (entry != null) {
+			mSize -= entry.mBytes.length;
+		}
+	}
+	private void removeByPrefix(String prefix) {
+		final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<String, Entry> each = iterator.next();
+			if (each.getKey().startsWith(prefix)) {
+				mSize -= each.getValue().mBytes.length;
+				iterator.remove();
+			}
+		}
+	}
+	private PrefixErase findPendingErase(String name) {
+		for (int n = mPendingErases.size() - 1; n >= 0; --n) {
+			final PrefixErase erase = mPendingErases.get(n);
+			if (name.startsWith(erase.mPrefix))
+				return erase;
+		}
+		return null;
+	}
+	private void trimToSize() {
+		final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+		while (mSize > mMaxSize && iterator.hasNext()) {
+			final Entry entry = iterator.next().getValue();
+			iterator.remove();
+			mSize -= entry.mBytes.length;
+			++mEvictionCount;
+		}
+	}
+
+	// ### 内嵌类 ###
+	public static class Entry {
+		public final byte[] mBytes;
+		public final Object mObject;
+		private long mSequence = 0;
+
+		public Entry(byte[] bytes, Object object) {
+			mBytes = bytes;
+			mObject = object;
+		}
+	}
+	public static class PrefixErase {
+		private final String mPrefix;
+		private final long mSequence;
+
+		private PrefixErase(String prefix, long sequence) {
+			mPrefix = prefix;
+			mSequence = sequence;
+		}
+	}
+}
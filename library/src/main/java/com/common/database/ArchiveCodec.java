@@ -0,0 +1,15 @@
+package com.common.database;
+
+import java.io.IOException;
+
+/**
+ * Archive中对象与字节流之间的转换. 每条记录以[标签, 版本]两个字节开头, 读取时按标签选择编码器,
+ * 所以编码器注册之后标签不能再改变. 标签取值范围为1~127, 旧版本中用Java序列化写入的记录以0xAC开头, 不会与之冲突.
+ */
+public interface ArchiveCodec {
+	int getTag();
+	int getVersion();
+	boolean canEncode(Object object);
+	void encode(Object object, ArchiveOutput out) throws IOException;
+	Object decode(ArchiveInput in, int version) throws IOException;
+}
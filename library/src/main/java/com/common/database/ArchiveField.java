@@ -0,0 +1,16 @@
+package com.common.database;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 标记由FieldCodec保存的字段. value是字段的编号(> 0), 写入记录中的是编号而不是字段名,
+ * 所以字段可以改名, 但编号一旦使用就不能再分配给其它字段.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface ArchiveField {
+	int value();
+}
@@ -0,0 +1,114 @@
+package com.common.database;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// 直接在记录的字节数组上读取, 格式与ArchiveOutput对应.
+public final class ArchiveInput extends InputStream {
+	private final byte[] mBuffer;
+	private final int mEnd;
+	private int mPosition;
+
+	// ### 构造函数 ###
+	public ArchiveInput(byte[] buffer, int offset, int count) {
+		mBuffer = buffer;
+		mPosition = offset;
+		mEnd = offset + count;
+	}
+
+	// ### 方法 ###
+	public int readByte() throws IOException {
+		require(1);
+		return mBuffer[mPosition++];
+	}
+	public long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("malformed varint");
+	}
+	public long readSignedVarLong() throws IOException {
+		final long value = readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+	public long readFixedLong() throws IOException {
+		require(8);
+		long value = 0;
+		for (int n = 0; n < 8; ++n) {
+			value |= (long) (mBuffer[mPosition++] & 0xFF) << (n * 8);
+		}
+		return value;
+	}
+	public float readFloat() throws IOException {
+		require(4);
+		int bits = 0;
+		for (int n = 0; n < 4; ++n) {
+			bits |= (mBuffer[mPosition++] & 0xFF) << (n * 8);
+		}
+		return Float.intBitsToFloat(bits);
+	}
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readFixedLong());
+	}
+	public byte[] readBytes() throws IOException {
+		final int length = readLength();
+		require(length);
+		final byte[] bytes = new byte[length];
+		System.arraycopy(mBuffer, mPosition, bytes, 0, length);
+		mPosition += length;
+		return bytes;
+	}
+	public String readString() throws IOException {
+		final int length = readLength();
+		final char[] chars = new char[length];
+		for (int n = 0; n < length; ++n) {
+			final int b = readByte() & 0xFF;
+			if (b < 0x80) {
+				chars[n] = (char) b;
+			} else if (b < 0xE0) {
+				chars[n] = (char) (((b & 0x1F) << 6) | (readByte() & 0x3F));
+			} else {
+				final int b1 = readByte() & 0x3F;
+				chars[n] = (char) (((b & 0x0F) << 12) | (b1 << 6) | (readByte() & 0x3F));
+			}
+		}
+		return new String(chars);
+	}
+	public int readLength() throws IOException {
+		final long length = readVarLong();
+		if (length < 0 || length > mEnd - mPosition)
+			throw new IOException("malformed length: " + length);
+		return (int) length;
+	}
+
+	// ### InputStream函数重写 ###
+	@Override
+	public int read() {
+		return mPosition < mEnd ? mBuffer[mPosition++] & 0xFF : -1;
+	}
+	@Override
+	public int read(byte[] buffer, int offset, int count) {
+		if (mPosition >= mEnd)
+			return -1;
+
+		final int n = Math.min(count, mEnd - mPosition);
+		System.arraycopy(mBuffer, mPosition, buffer, offset, n);
+		mPosition += n;
+		return n;
+	}
+	@Override
+	public int available() {
+		return mEnd - mPosition;
+	}
+
+	// ### 实现函数 ###
+	private void require(int count) throws IOException {
+		if (mEnd - mPosition < count)
+			throw new EOFException();
+	}
+}
@@ -0,0 +1,106 @@
+package com.common.database;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// 可重复使用的字节缓冲区, 由Archive按线程缓存, 避免每次编码都分配新的流和数组.
+public final class ArchiveOutput extends OutputStream {
+	private byte[] mBuffer;
+	private int mSize = 0;
+
+	// ### 构造函数 ###
+	public ArchiveOutput(int capacity) {
+		mBuffer = new byte[Math.max(16, capacity)];
+	}
+
+	// ### 属性 ###
+	public int size() {
+		return mSize;
+	}
+	public int capacity() {
+		return mBuffer.length;
+	}
+
+	// ### 方法 ###
+	public void reset() {
+		mSize = 0;
+	}
+	public byte[] toByteArray() {
+		return Arrays.copyOf(mBuffer, mSize);
+	}
+	public void writeByte(int value) {
+		ensureCapacity(1);
+		mBuffer[mSize++] = (byte) value;
+	}
+	public void writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			mBuffer[mSize++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		mBuffer[mSize++] = (byte) value;
+	}
+	// 按zigzag编码写入有符号整数, 绝对值较小的负数也只占用很少的字节.
+	public void writeSignedVarLong(long value) {
+		writeVarLong((value << 1) ^ (value >> 63));
+	}
+	public void writeFixedLong(long value) {
+		ensureCapacity(8);
+		for (int n = 0; n < 8; ++n) {
+			mBuffer[mSize++] = (byte) (value >>> (n * 8));
+		}
+	}
+	public void writeFloat(float value) {
+		final int bits = Float.floatToIntBits(value);
+		ensureCapacity(4);
+		for (int n = 0; n < 4; ++n) {
+			mBuffer[mSize++] = (byte) (bits >>> (n * 8));
+		}
+	}
+	public void writeDouble(double value) {
+		writeFixedLong(Double.doubleToLongBits(value));
+	}
+	public void writeBytes(byte[] bytes) {
+		writeVarLong(bytes.length);
+		write(bytes, 0, bytes.length);
+	}
+	// 长度为字符数, 每个char单独按UTF-8规则编码为1~3个字节, 无需先转换成字节数组.
+	public void writeString(String value) {
+		final int length = value.length();
+		writeVarLong(length);
+		ensureCapacity(length * 3);
+		for (int n = 0; n < length; ++n) {
+			final char c = value.charAt(n);
+			if (c < 0x80) {
+				mBuffer[mSize++] = (byte) c;
+			} else if (c < 0x800) {
+				mBuffer[mSize++] = (byte) (0xC0 | (c >> 6));
+				mBuffer[mSize++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				mBuffer[mSize++] = (byte) (0xE0 | (c >> 12));
+				mBuffer[mSize++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				mBuffer[mSize++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	// ### OutputStream函数重写 ###
+	@Override
+	public void write(int oneByte) {
+		writeByte(oneByte);
+	}
+	@Override
+	public void write(byte[] buffer, int offset, int count) {
+		ensureCapacity(count);
+		System.arraycopy(buffer, offset, mBuffer, mSize, count);
+		mSize += count;
+	}
+
+	// ### 实现函数 ###
+	private void ensureCapacity(int count) {
+		if (mSize + count <= mBuffer.length)
+			return;
+
+		mBuffer = Arrays.copyOf(mBuffer, Math.max(mSize + count, mBuffer.length * 2));
+	}
+}
@@ -1,41 +1,101 @@
 package com.common.database;
 
+import android.database.Cursor;
+
+import com.common.sys.Debugger;
+import com.common.sys.Logger;
 import com.common.sys.ThreadSafe;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Subscriber;
 
 /**
  * Created by pangpengde on 15/8/13.
  */
 public abstract class AsyncDatabase implements ThreadSafe {
 
-    private static final int DB_VERSION_FIRST = 1;
+    protected static final int DB_VERSION_FIRST = 1;
+    private static final String GROUP_COMMIT_SAVEPOINT = "group_commit";
+    private static final String MIGRATION_TABLE = "migration_progress";
+    private static final String JOURNAL_TABLE = "journal_progress";
+    private static final String LOG_TAG = "journal";
+    private static final int DB_READER_COUNT = 3;
+    // 每成功提交这么多个写操作请求一次备份, 连续的请求在ManagedDatabase中合并为一次
+    private static final int BACKUP_WRITE_COUNT = 100;
     protected static final ScheduledExecutorService mDbWriter = Executors.newSingleThreadScheduledExecutor();
+    // 只读查询使用独立的线程, 不在mDbWriter上排队等待写操作
+    protected static final ExecutorService mDbReader = Executors.newFixedThreadPool(DB_READER_COUNT);
     protected final ManagedDatabase mDb;
+    private final Object mQueueLock = new Object();
+    private final ArrayList<Migration> mMigrations = new ArrayList<Migration>();
+    private Future<Boolean> mReadyFuture = null;
+    // 最近一次建表或升级失败的原因, 成功后清空. 失败后下一次提交的读写操作会重新尝试打开.
+    private volatile Throwable mReadyFailure = null;
+    // 只在写线程中使用, 建表和升级全部成功后才为true, 否则写操作不执行直接失败
+    private boolean mOpened = false;
+    private ArrayList<GroupedWrite> mGroupedWrites = new ArrayList<GroupedWrite>();
+    private ScheduledFuture<?> mGroupCommitTimer = null;
+    // 只在写线程中使用, 不支持回滚到保存点时合并提交的写操作逐个在独立的事务中执行
+    private boolean mSavepointsSupported = false;
+    private long mGroupCommitWindow = 0;
+    private int mGroupCommitMaxSize = 0;
+    private File mJournalFile = null;
+    // 在写线程上打开日志后才设置, 读写都持有mQueueLock
+    private WriteJournal mJournal = null;
+    // 日志打开之前提交, 还没有在写线程上追加到日志的写操作数
+    private int mDeferredJournalWrites = 0;
+    // 只在写线程中使用, 上一次请求备份之后成功提交的写操作数
+    private int mWritesSinceBackup = 0;
 
     // ### 构造函数 ###
     public AsyncDatabase(String archiveUri) {
         this(archiveUri, "");
     }
     public AsyncDatabase(String archiveUri, String backupUri) {
-        mDb = new ManagedDatabase(archiveUri, backupUri);
-
-        asyncWriteInTransaction(new WriteTask() {
-            @Override
-            public boolean write(ManagedDatabase db) {
-                if (db.getVersion() < DB_VERSION_FIRST) {
-                    createTable(db);
-                    db.setVersion(DB_VERSION_FIRST);
-                }
-                return true;
-            }
-        });
+        this(archiveUri, backupUri, false);
+    }
+    public AsyncDatabase(String archiveUri, String backupUri, boolean walEnabled) {
+        mDb = new ManagedDatabase(archiveUri, backupUri, walEnabled);
     }
 
     // ### 方法 ###
+    /**
+     * 开启合并提交: windowMillis时间内(或累计达到maxBatchSize个)的事务写操作合并到同一个事务中提交.
+     * 每个写操作在独立的保存点中执行, 单个操作失败只回滚它自己. windowMillis <= 0时关闭合并提交.
+     */
+    /**
+     * 请求在后台备份数据库(没有设置备份路径时什么也不做). 写操作累计到一定数量时会自动请求,
+     * 应用退到后台时也应该调用一次.
+     */
+    public void requestBackup() {
+        mDb.requestBackup();
+    }
+    public void setGroupCommit(long windowMillis, int maxBatchSize) {
+        synchronized (mQueueLock) {
+            mGroupCommitWindow = Math.max(0, windowMillis);
+            mGroupCommitMaxSize = Math.max(1, maxBatchSize);
+        }
+    }
+    /**
+     * @deprecated 调用方很难保证配对, 请使用{@link #setGroupCommit(long, int)}.
+     */
+    @Deprecated
     public void beginBatchWrite() {
         asyncWrite(new WriteTask() {
             @Override
@@ -45,6 +105,7 @@ public abstract class AsyncDatabase implements ThreadSafe {
             }
         });
     }
+    @Deprecated
     public void setBatchWriteSuccessful() {
         asyncWrite(new WriteTask() {
             @Override
@@ -54,6 +115,7 @@ public abstract class AsyncDatabase implements ThreadSafe {
             }
         });
     }
+    @Deprecated
     public Future<Boolean> endBatchWrite() {
         return asyncWrite(new WriteTask() {
             @Override
@@ -63,6 +125,7 @@ public abstract class AsyncDatabase implements ThreadSafe {
             }
         });
     }
+    @Deprecated
     public boolean endBatchWriteNow() {
         final Future<Boolean> f = endBatchWrite();
         while (true) try {
@@ -78,41 +141,476 @@ public abstract class AsyncDatabase implements ThreadSafe {
     }
 
     // ### 实现方法 ###
+    // createTable()只创建第一版(DB_VERSION_FIRST)的表结构, 之后的变更都通过registerMigration()注册, 新旧安装走同一条升级路径.
     protected abstract void createTable(ManagedDatabase db);
 
+    // 只能在子类的构造函数中调用. 建表和升级在第一次读写数据库时才开始, 此时子类已经构造完毕.
+    protected void registerMigration(Migration migration) {
+        synchronized (mQueueLock) {
+            assert mReadyFuture == null;
+            mMigrations.add(migration);
+        }
+    }
+
+    // 只能在子类的构造函数中调用. 开启后asyncJournaledWrite()提交的写操作在日志同步到磁盘后就算成功,
+    // 进程在写入数据库之前被杀死的操作, 下次打开数据库时通过applyJournaledWrite()重新执行.
+    // 日志文件和建表升级一起在写线程上打开并重放, 不在调用线程上读写磁盘.
+    protected void enableJournal(File journalFile) {
+        synchronized (mQueueLock) {
+            assert mReadyFuture == null;
+            mJournalFile = journalFile;
+        }
+    }
+
+    /**
+     * 提交一个可以在崩溃后重放的写操作. 写操作由operation和payload完整描述, 正常情况下执行task,
+     * 重放时执行applyJournaledWrite(), 两者必须产生相同的结果.
+     * 返回的Future在日志同步到磁盘后完成, 不等待写入数据库; 没有开启日志时等同于asyncWriteInTransaction().
+     * 日志还没有打开时, 写操作在写线程上追加到日志后立即执行, 返回的Future在写入数据库后完成.
+     */
+    protected Future<Boolean> asyncJournaledWrite(final int operation, final byte[] payload, final WriteTask task) {
+        synchronized (mQueueLock) {
+            ensureReady();
+
+            // 之前推迟的写操作都追加之后才能在调用线程上追加, 保证日志中的序号和执行顺序一致
+            if (mJournal != null && mDeferredJournalWrites == 0) try {
+                final WriteJournal.Record record = mJournal.append(operation, payload);
+                asyncWrite(new WriteTask() {
+                    @Override
+                    public boolean write(ManagedDatabase db) {
+                        return applyJournalRecord(record, task);
+                    }
+                });
+                return record.getAck();
+
+            } catch (IOException e) {
+                e.printStackTrace();
+
+            } else if (mJournalFile != null) {
+                ++mDeferredJournalWrites;
+                return asyncWrite(new WriteTask() {
+                    @Override
+                    public boolean write(ManagedDatabase db) {
+                        WriteJournal.Record record = null;
+                        synchronized (mQueueLock) {
+                            --mDeferredJournalWrites;
+                            if (mJournal != null) try {
+                                record = mJournal.append(operation, payload);
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                        return record != null ? applyJournalRecord(record, task) : writeInTransaction(task);
+                    }
+                });
+            }
+        }
+
+        return asyncWriteInTransaction(task);
+    }
+    // 在写线程上重放日志中的写操作, 返回false或抛出异常的操作会被跳过. 默认实现不认识任何操作, 记录后跳过.
+    protected boolean applyJournaledWrite(ManagedDatabase db, int operation, byte[] payload) {
+        final Debugger debugger = Debugger.get();
+        if (debugger != null) {
+            debugger.log(LOG_TAG, Logger.LOG_CONSOLE, "skipped unknown journaled operation: " + operation);
+        }
+        return false;
+    }
+
+    // 在mDbReader上执行的查询需要先等待建表和升级完成, 写操作在mDbWriter上天然排在升级之后, 无需等待.
+    // 建表或升级失败时抛出IllegalStateException, 查询应当把它作为错误交给订阅者, 而不是在不完整的表结构上继续.
+    protected void waitForReady() {
+        final Future<Boolean> readyFuture;
+        synchronized (mQueueLock) {
+            readyFuture = ensureReady();
+        }
+
+        boolean ready = false;
+        while (true) try {
+            ready = readyFuture.get();
+            break;
+        } catch (InterruptedException e) {
+
+        } catch (ExecutionException e) {
+            break;
+        }
+
+        if (ready == false)
+            throw new IllegalStateException("database is not ready: " + mDb.getDatabaseUri(), mReadyFailure);
+    }
+
+    /**
+     * 在mDbReader上流式读取查询结果, 每次向下游发出最多chunkSize行. 只按下游的请求量读取游标,
+     * 取消订阅或读取完毕后游标立即关闭, 适合导出等需要遍历整张表的场景.
+     */
+    protected <T> Observable<List<T>> streamQuery(final String sql, final String[] selectionArgs, final RowMapper<T> mapper, final int chunkSize) {
+        return Observable.create(new Observable.OnSubscribe<List<T>>() {
+            @Override
+            public void call(Subscriber<? super List<T>> subscriber) {
+                subscriber.setProducer(new CursorChunkProducer<T>(subscriber, mDbReader, new CursorChunkProducer.CursorFactory() {
+                    @Override
+                    public Cursor open() {
+                        waitForReady();
+                        return mDb.rawQuery(sql, selectionArgs);
+                    }
+                }, mapper, chunkSize));
+            }
+        });
+    }
+
     protected Future<Boolean> asyncWriteInTransaction(final WriteTask task) {
+        synchronized (mQueueLock) {
+            ensureReady();
+
+            if (mGroupCommitWindow > 0) {
+                final GroupedWrite write = new GroupedWrite(task);
+                mGroupedWrites.add(write);
+
+                if (mGroupedWrites.size() >= mGroupCommitMaxSize) {
+                    final List<GroupedWrite> writes = detachGroupedWrites();
+                    mDbWriter.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            commitGroupedWrites(writes);
+                        }
+                    });
+                } else if (mGroupedWrites.size() == 1) {
+                    final List<GroupedWrite> batch = mGroupedWrites;
+                    mGroupCommitTimer = mDbWriter.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            final List<GroupedWrite> writes;
+                            synchronized (mQueueLock) {
+                                // 这一批已经提前提交, 不能提交之后的新一批, 否则会缩短它的等待窗口.
+                                if (mGroupedWrites != batch)
+                                    return;
+
+                                writes = detachGroupedWrites();
+                            }
+                            commitGroupedWrites(writes);
+                        }
+                    }, mGroupCommitWindow, TimeUnit.MILLISECONDS);
+                }
+                return write;
+            }
+        }
+
         return asyncWrite(new WriteTask() {
             @Override
             public boolean write(ManagedDatabase db) {
-                db.beginTransaction();
-                try {
-                    final boolean succeed = task.write(db);
-                    db.setTransactionSuccessful();
-                    return succeed;
-                } catch (Throwable e) {
-                    return false;
-                } finally {
-                    db.endTransaction();
-                }
+                return writeInTransaction(task);
             }
         });
     }
     protected Future<Boolean> asyncWrite(final WriteTask task) {
-        return mDbWriter.submit(new Callable<Boolean>() {
-            @Override
-            public Boolean call() throws Exception {
+        synchronized (mQueueLock) {
+            ensureReady();
+
+            // 先提交之前排队的合并写操作, 保证写操作按提交顺序执行.
+            final List<GroupedWrite> writes = detachGroupedWrites();
+            return mDbWriter.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    commitGroupedWrites(writes);
+                    if (mOpened == false)
+                        return false;
+
+                    final boolean succeed;
+                    try {
+                        succeed = task.write(mDb);
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        return false;
+                    }
+                    if (succeed) {
+                        countWrites(1);
+                    }
+                    return succeed;
+                }
+            });
+        }
+    }
+    private Future<Boolean> ensureReady() {
+        assert Thread.holdsLock(mQueueLock);
+
+        // 上一次打开失败, 重新提交建表和升级; 已经完成的升级段有进度记录, 不会重复执行
+        if (mReadyFuture != null && mReadyFuture.isDone() && mReadyFailure != null) {
+            mReadyFuture = null;
+        }
+        if (mReadyFuture == null) {
+            final ArrayList<Migration> migrations = new ArrayList<Migration>(mMigrations);
+            final File journalFile = mJournalFile;
+            Collections.sort(migrations, new Comparator<Migration>() {
+                @Override
+                public int compare(Migration lhs, Migration rhs) {
+                    return lhs.getVersion() < rhs.getVersion() ? -1 : (lhs.getVersion() == rhs.getVersion() ? 0 : 1);
+                }
+            });
+
+            mReadyFuture = mDbWriter.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    mOpened = false;
+                    try {
+                        openDatabase(migrations, journalFile);
+                        mOpened = true;
+                        mReadyFailure = null;
+                        return true;
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        mReadyFailure = e;
+                        return false;
+                    }
+                }
+            });
+        }
+        return mReadyFuture;
+    }
+    private void openDatabase(List<Migration> migrations, File journalFile) {
+        mSavepointsSupported = mDb.supportsSavepointRollback();
+
+        mDb.beginTransaction();
+        try {
+            if (mDb.getVersion() < DB_VERSION_FIRST) {
+                createTable(mDb);
+                mDb.setVersion(DB_VERSION_FIRST);
+            }
+            mDb.execSQL("CREATE TABLE IF NOT EXISTS " + MIGRATION_TABLE + "(version INTEGER PRIMARY KEY, progress INTEGER)");
+            mDb.execSQL("CREATE TABLE IF NOT EXISTS " + JOURNAL_TABLE + "(id INTEGER PRIMARY KEY, sequence INTEGER)");
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        for (Migration migration : migrations) {
+            if (migration.getVersion() <= mDb.getVersion())
+                continue;
+
+            long progress = readMigrationProgress(migration.getVersion());
+            while (progress != Migration.DONE) {
+                // 每一段升级和它的进度在同一个事务中提交
+                mDb.beginTransaction();
                 try {
-                    return task.write(mDb);
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                    return false;
+                    progress = migration.migrate(mDb, progress);
+                    if (progress == Migration.DONE) {
+                        mDb.delete(MIGRATION_TABLE, "version = ?", new String[] { String.valueOf(migration.getVersion()) });
+                        mDb.setVersion(migration.getVersion());
+                    } else {
+                        assert progress >= 0;
+                        mDb.execSQL("INSERT OR REPLACE INTO " + MIGRATION_TABLE + " VALUES(?, ?)", new Object[] { migration.getVersion(), progress });
+                    }
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
                 }
             }
-        });
+        }
+
+        // 重试打开时日志可能已经在上一次打开
+        if (journalFile != null && mJournal == null) {
+            openJournal(journalFile);
+        }
+    }
+    private void openJournal(File journalFile) {
+        WriteJournal journal = null;
+        try {
+            journal = new WriteJournal(journalFile);
+        } catch (IOException e) {
+            // 日志不可用时asyncJournaledWrite()退化为普通的事务写操作
+            e.printStackTrace();
+        }
+
+        synchronized (mQueueLock) {
+            mJournal = journal;
+            if (journal == null) {
+                mJournalFile = null;
+            }
+        }
+
+        // 之后追加的记录序号更大, 它们的写操作也排在重放之后执行
+        if (journal != null) {
+            replayJournal();
+        }
+    }
+    private void replayJournal() {
+        final List<WriteJournal.Record> records = mJournal.getRecoveredRecords();
+        if (records.isEmpty())
+            return;
+
+        final long appliedSequence = queryLong("SELECT sequence FROM " + JOURNAL_TABLE + " WHERE id = 0");
+        for (WriteJournal.Record record : records) {
+            if (record.mSequence > appliedSequence) {
+                applyJournalRecord(record, null);
+            }
+        }
+        mJournal.markApplied(records.get(records.size() - 1).mSequence);
+        mJournal.clearRecoveredRecords();
+    }
+    // task为null时表示重放. 写操作和日志进度在同一个事务中提交; 写操作抛出异常时整个事务回滚, 进度另外单独提交,
+    // 失败的操作不会在下次重放时再次执行. 不使用保存点, 所以在不支持回滚到保存点的系统上同样可用.
+    private boolean applyJournalRecord(WriteJournal.Record record, WriteTask task) {
+        boolean succeed = false;
+        boolean committed = false;
+        mDb.beginTransaction();
+        try {
+            succeed = task != null ? task.write(mDb) : applyJournaledWrite(mDb, record.mOperation, record.mPayload);
+            writeJournalProgress(record.mSequence);
+            mDb.setTransactionSuccessful();
+            committed = true;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            succeed = false;
+        } finally {
+            mDb.endTransaction();
+        }
+
+        if (committed == false) try {
+            writeJournalProgress(record.mSequence);
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+
+        mJournal.markApplied(record.mSequence);
+        return succeed;
+    }
+    private void writeJournalProgress(long sequence) {
+        mDb.execSQL("INSERT OR REPLACE INTO " + JOURNAL_TABLE + " VALUES(0, ?)", new Object[] { sequence });
+    }
+    private long readMigrationProgress(int version) {
+        return queryLong("SELECT progress FROM " + MIGRATION_TABLE + " WHERE version = ?", String.valueOf(version));
+    }
+    private long queryLong(String sql, String... selectionArgs) {
+        Cursor cursor = null;
+        try {
+            cursor = mDb.rawQuery(sql, selectionArgs);
+            return cursor.moveToFirst() ? DbUtils.getLong(cursor, 0) : 0;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+    private List<GroupedWrite> detachGroupedWrites() {
+        assert Thread.holdsLock(mQueueLock);
+
+        if (mGroupCommitTimer != null) {
+            mGroupCommitTimer.cancel(false);
+            mGroupCommitTimer = null;
+        }
+        if (mGroupedWrites.isEmpty())
+            return null;
+
+        final List<GroupedWrite> writes = mGroupedWrites;
+        mGroupedWrites = new ArrayList<GroupedWrite>();
+        return writes;
+    }
+    private void commitGroupedWrites(List<GroupedWrite> writes) {
+        if (writes == null)
+            return;
+
+        if (mOpened == false) {
+            for (GroupedWrite each : writes) {
+                each.complete(false);
+            }
+            return;
+        }
+
+        if (mSavepointsSupported == false) {
+            int succeedCount = 0;
+            for (GroupedWrite each : writes) {
+                if (each.isCancelled() == false) {
+                    final boolean succeed = writeInTransaction(each.mTask);
+                    each.complete(succeed);
+                    succeedCount += succeed ? 1 : 0;
+                }
+            }
+            countWrites(succeedCount);
+            return;
+        }
+
+        boolean committed = false;
+        try {
+            mDb.beginTransaction();
+            try {
+                for (GroupedWrite each : writes) {
+                    if (each.isCancelled())
+                        continue;
+
+                    each.mResult = writeInSavepoint(each.mTask);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            committed = true;
+
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+
+        int succeedCount = 0;
+        for (GroupedWrite each : writes) {
+            each.complete(committed && each.mResult);
+            succeedCount += committed && each.mResult ? 1 : 0;
+        }
+        countWrites(succeedCount);
+    }
+    private void countWrites(int count) {
+        mWritesSinceBackup += count;
+        if (mWritesSinceBackup >= BACKUP_WRITE_COUNT) {
+            mWritesSinceBackup = 0;
+            mDb.requestBackup();
+        }
+    }
+    private boolean writeInTransaction(WriteTask task) {
+        mDb.beginTransaction();
+        try {
+            final boolean succeed = task.write(mDb);
+            mDb.setTransactionSuccessful();
+            return succeed;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+    private boolean writeInSavepoint(WriteTask task) {
+        mDb.beginSavepoint(GROUP_COMMIT_SAVEPOINT);
+        try {
+            final boolean succeed = task.write(mDb);
+            mDb.releaseSavepoint(GROUP_COMMIT_SAVEPOINT);
+            return succeed;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            mDb.rollbackToSavepoint(GROUP_COMMIT_SAVEPOINT);
+            mDb.releaseSavepoint(GROUP_COMMIT_SAVEPOINT);
+            return false;
+        }
     }
 
     // ### 内部类 ###
     protected static interface WriteTask {
         boolean write(ManagedDatabase db);
     }
+    private static class GroupedWrite extends FutureTask<Boolean> {
+        private static final Runnable NOP = new Runnable() {
+            @Override
+            public void run() {
+
+            }
+        };
+        private final WriteTask mTask;
+        private boolean mResult = false;
+
+        public GroupedWrite(WriteTask task) {
+            super(NOP, false);
+
+            mTask = task;
+        }
+
+        public void complete(boolean result) {
+            set(result);
+        }
+    }
 }
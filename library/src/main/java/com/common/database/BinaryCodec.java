@@ -0,0 +1,179 @@
+package com.common.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 紧凑的二进制编码, 支持null, 基本类型的包装类, String, byte[], 以及由它们组成的ArrayList和HashMap.
+ * 只接受这两种确切的容器类型, 保证读出的对象与写入时类型一致; 其它类型交给后面的编码器或Java序列化处理.
+ */
+public class BinaryCodec implements ArchiveCodec {
+	public static final int TAG = 1;
+	private static final int VERSION = 1;
+
+	protected static final int TYPE_NULL = 0;
+	protected static final int TYPE_TRUE = 1;
+	protected static final int TYPE_FALSE = 2;
+	protected static final int TYPE_BYTE = 3;
+	protected static final int TYPE_SHORT = 4;
+	protected static final int TYPE_CHAR = 5;
+	protected static final int TYPE_INT = 6;
+	protected static final int TYPE_LONG = 7;
+	protected static final int TYPE_FLOAT = 8;
+	protected static final int TYPE_DOUBLE = 9;
+	protected static final int TYPE_STRING = 10;
+	protected static final int TYPE_BYTES = 11;
+	protected static final int TYPE_LIST = 12;
+	protected static final int TYPE_MAP = 13;
+
+	// ### ArchiveCodec接口实现 ###
+	@Override
+	public int getTag() {
+		return TAG;
+	}
+	@Override
+	public int getVersion() {
+		return VERSION;
+	}
+	@Override
+	public boolean canEncode(Object object) {
+		// 容器中的元素在encode()时才检查, 遇到不支持的元素会抛出异常, 由Archive换用其它编码器.
+		return object == null || isValueType(object.getClass());
+	}
+	@Override
+	public void encode(Object object, ArchiveOutput out) throws IOException {
+		writeValue(object, out);
+	}
+	@Override
+	public Object decode(ArchiveInput in, int version) throws IOException {
+		return readValue(in);
+	}
+
+	// ### 实现函数 ###
+	protected boolean isValueType(Class<?> cls) {
+		return cls == String.class
+				|| cls == Integer.class
+				|| cls == Long.class
+				|| cls == Boolean.class
+				|| cls == Float.class
+				|| cls == Double.class
+				|| cls == Short.class
+				|| cls == Byte.class
+				|| cls == Character.class
+				|| cls == byte[].class
+				|| cls == ArrayList.class
+				|| cls == HashMap.class;
+	}
+	protected void writeValue(Object value, ArchiveOutput out) throws IOException {
+		if (value == null) {
+			out.writeByte(TYPE_NULL);
+			return;
+		}
+
+		final Class<?> cls = value.getClass();
+		if (cls == String.class) {
+			out.writeByte(TYPE_STRING);
+			out.writeString((String) value);
+		} else if (cls == Integer.class) {
+			out.writeByte(TYPE_INT);
+			out.writeSignedVarLong((Integer) value);
+		} else if (cls == Long.class) {
+			out.writeByte(TYPE_LONG);
+			out.writeSignedVarLong((Long) value);
+		} else if (cls == Boolean.class) {
+			out.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+		} else if (cls == Float.class) {
+			out.writeByte(TYPE_FLOAT);
+			out.writeFloat((Float) value);
+		} else if (cls == Double.class) {
+			out.writeByte(TYPE_DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (cls == Short.class) {
+			out.writeByte(TYPE_SHORT);
+			out.writeSignedVarLong((Short) value);
+		} else if (cls == Byte.class) {
+			out.writeByte(TYPE_BYTE);
+			out.writeByte((Byte) value);
+		} else if (cls == Character.class) {
+			out.writeByte(TYPE_CHAR);
+			out.writeVarLong((Character) value);
+		} else if (cls == byte[].class) {
+			out.writeByte(TYPE_BYTES);
+			out.writeBytes((byte[]) value);
+		} else if (cls == ArrayList.class) {
+			final List<?> list = (List<?>) value;
+			out.writeByte(TYPE_LIST);
+			out.writeVarLong(list.size());
+			for (int n = 0; n < list.size(); ++n) {
+				writeValue(list.get(n), out);
+			}
+		} else if (cls == HashMap.class) {
+			final Map<?, ?> map = (Map<?, ?>) value;
+			out.writeByte(TYPE_MAP);
+			out.writeVarLong(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeValue(entry.getKey(), out);
+				writeValue(entry.getValue(), out);
+			}
+		} else {
+			writeOtherValue(value, out);
+		}
+	}
+	protected void writeOtherValue(Object value, ArchiveOutput out) throws IOException {
+		throw new IllegalArgumentException("unsupported type: " + value.getClass().getName());
+	}
+	protected Object readValue(ArchiveInput in) throws IOException {
+		final int type = in.readByte();
+		switch (type) {
+			case TYPE_NULL:
+				return null;
+			case TYPE_TRUE:
+				return Boolean.TRUE;
+			case TYPE_FALSE:
+				return Boolean.FALSE;
+			case TYPE_BYTE:
+				return (byte) in.readByte();
+			case TYPE_SHORT:
+				return (short) in.readSignedVarLong();
+			case TYPE_CHAR:
+				return (char) in.readVarLong();
+			case TYPE_INT:
+				return (int) in.readSignedVarLong();
+			case TYPE_LONG:
+				return in.readSignedVarLong();
+			case TYPE_FLOAT:
+				return in.readFloat();
+			case TYPE_DOUBLE:
+				return in.readDouble();
+			case TYPE_STRING:
+				return in.readString();
+			case TYPE_BYTES:
+				return in.readBytes();
+			case TYPE_LIST: {
+				final int size = in.readLength();
+				final ArrayList<Object> list = new ArrayList<Object>(size);
+				for (int n = 0; n < size; ++n) {
+					list.add(readValue(in));
+				}
+				return list;
+			}
+			case TYPE_MAP: {
+				final int size = in.readLength();
+				final HashMap<Object, Object> map = new HashMap<Object, Object>(size * 4 / 3 + 1);
+				for (int n = 0; n < size; ++n) {
+					final Object key = readValue(in);
+					map.put(key, readValue(in));
+				}
+				return map;
+			}
+			default:
+				return readOtherValue(type, in);
+		}
+	}
+	protected Object readOtherValue(int type, ArchiveInput in) throws IOException {
+		throw new IOException("unknown type: " + type);
+	}
+}
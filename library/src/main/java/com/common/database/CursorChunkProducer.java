@@ -0,0 +1,134 @@
+package com.common.database;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Producer;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+// 按下游的请求量分批读取游标, 每批最多chunkSize行.
+// 游标的打开, 读取和关闭都串行地在executor上执行, 取消订阅后游标会尽快关闭.
+class CursorChunkProducer<T> implements Producer {
+	private final Subscriber<? super List<T>> mSubscriber;
+	private final Executor mExecutor;
+	private final CursorFactory mCursorFactory;
+	private final RowMapper<T> mMapper;
+	private final int mChunkSize;
+	private final AtomicLong mRequested = new AtomicLong(0);
+	private final AtomicInteger mWip = new AtomicInteger(0);
+	private final Runnable mDrainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+	// 以下变量只在drain()中访问
+	private Cursor mCursor = null;
+	private boolean mDone = false;
+
+	public interface CursorFactory {
+		Cursor open();
+	}
+
+	// ### 构造函数 ###
+	public CursorChunkProducer(Subscriber<? super List<T>> subscriber, Executor executor, CursorFactory cursorFactory, RowMapper<T> mapper, int chunkSize) {
+		mSubscriber = subscriber;
+		mExecutor = executor;
+		mCursorFactory = cursorFactory;
+		mMapper = mapper;
+		mChunkSize = Math.max(1, chunkSize);
+
+		mSubscriber.add(Subscriptions.create(new Action0() {
+			@Override
+			public void call() {
+				scheduleDrain();
+			}
+		}));
+	}
+
+	// ### Producer接口实现 ###
+	@Override
+	public void request(long n) {
+		if (n <= 0)
+			return;
+
+		while (true) {
+			final long current = mRequested.get();
+			final long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+			if (mRequested.compareAndSet(current, next))
+				break;
+		}
+		scheduleDrain();
+	}
+
+	// ### 实现函数 ###
+	private void scheduleDrain() {
+		if (mWip.getAndIncrement() == 0) {
+			mExecutor.execute(mDrainTask);
+		}
+	}
+	private void drain() {
+		int missed = 1;
+		while (true) {
+			drainRequested();
+
+			missed = mWip.addAndGet(-missed);
+			if (missed == 0)
+				break;
+		}
+	}
+	private void drainRequested() {
+		if (mDone)
+			return;
+
+		try {
+			while (mSubscriber.isUnsubscribed() == false && mRequested.get() > 0) {
+				if (mCursor == null) {
+					mCursor = mCursorFactory.open();
+					mMapper.bindColumns(mCursor);
+				}
+
+				final ArrayList<T> chunk = new ArrayList<T>(mChunkSize);
+				while (chunk.size() < mChunkSize && mCursor.moveToNext()) {
+					chunk.add(mMapper.mapRow(mCursor));
+				}
+
+				if (chunk.size() > 0) {
+					if (mRequested.get() != Long.MAX_VALUE) {
+						mRequested.decrementAndGet();
+					}
+					mSubscriber.onNext(chunk);
+				}
+				if (chunk.size() < mChunkSize) {
+					finish();
+					mSubscriber.onCompleted();
+					return;
+				}
+			}
+
+			if (mSubscriber.isUnsubscribed()) {
+				finish();
+			}
+
+		} catch (Throwable e) {
+			finish();
+			mSubscriber.onError(e);
+		}
+	}
+	private void finish() {
+		mDone = true;
+		if (mCursor != null) try {
+			mCursor.close();
+		} catch (Throwable e) {
+
+		}
+		mCursor = null;
+	}
+}
@@ -0,0 +1,231 @@
+package com.common.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import com.common.sys.Debugger;
+import com.common.sys.Logger;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 跟踪ManagedCursor的生命周期. 被遗忘的游标由后台线程通过虚引用回收, 不再依赖finalize().
+ * ManagedDatabaseStatement也由同一个线程回收, 但不计入游标的统计.
+ *
+ * 开启检测后会记录每个游标创建时的调用栈, 打开超过阈值或没有关闭就被回收的游标通过Debugger报告.
+ * 检测只影响之后创建的游标, 记录调用栈有一定开销, 只应在调试时开启.
+ */
+public final class CursorTracker {
+	private static final String LOG_TAG = "cursor";
+	private static final long SCAN_INTERVAL = 1000;
+	private static final ReferenceQueue<Object> mQueue = new ReferenceQueue<Object>();
+	private static final Set<Record> mLiveRecords = Collections.newSetFromMap(new ConcurrentHashMap<Record, Boolean>());
+	// 虚引用本身必须可达, 否则会和语句一起被回收而不会进入队列
+	private static final Set<StatementRecord> mLiveStatements = Collections.newSetFromMap(new ConcurrentHashMap<StatementRecord, Boolean>());
+	private static final AtomicInteger mLiveCount = new AtomicInteger(0);
+	private static final AtomicInteger mPeakCount = new AtomicInteger(0);
+	private static final AtomicLong mClosedCount = new AtomicLong(0);
+	private static final AtomicLong mTotalOpenDuration = new AtomicLong(0);
+	private static final AtomicLong mLeakCount = new AtomicLong(0);
+	private static final AtomicLong mStatementLeakCount = new AtomicLong(0);
+	private static volatile boolean mDetectionEnabled = false;
+	private static volatile long mLeakThreshold = 0;
+
+	static {
+		final Thread reaperThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				reapCore();
+			}
+		}, "cursor-reaper");
+		reaperThread.setDaemon(true);
+		reaperThread.start();
+	}
+
+	// ### 构造函数 ###
+	private CursorTracker() {
+
+	}
+
+	// ### 方法 ###
+	/**
+	 * @param leakThresholdMillis 游标打开超过这个时间仍未关闭时报告一次, <= 0时只报告被回收的游标.
+	 */
+	public static void setLeakDetection(boolean enabled, long leakThresholdMillis) {
+		mLeakThreshold = leakThresholdMillis;
+		mDetectionEnabled = enabled;
+	}
+	public static int getLiveCount() {
+		return mLiveCount.get();
+	}
+	public static int getPeakCount() {
+		return mPeakCount.get();
+	}
+	public static long getLeakCount() {
+		return mLeakCount.get();
+	}
+	public static long getStatementLeakCount() {
+		return mStatementLeakCount.get();
+	}
+	// 已关闭(包括被回收)的游标平均打开了多少毫秒
+	public static long getAverageOpenDuration() {
+		final long closedCount = mClosedCount.get();
+		return closedCount > 0 ? mTotalOpenDuration.get() / closedCount : 0;
+	}
+
+	// ### 实现函数 ###
+	static Record track(ManagedCursor cursor, SQLiteDatabaseLink sqlLink, Cursor sqlCursor) {
+		final Record record = new Record(cursor, sqlLink, sqlCursor, mDetectionEnabled ? new Throwable("cursor allocated here") : null);
+		mLiveRecords.add(record);
+
+		final int liveCount = mLiveCount.incrementAndGet();
+		while (true) {
+			final int peakCount = mPeakCount.get();
+			if (liveCount <= peakCount || mPeakCount.compareAndSet(peakCount, liveCount))
+				break;
+		}
+		return record;
+	}
+	static StatementRecord track(ManagedDatabaseStatement statement, SQLiteDatabaseLink sqlLink, SQLiteStatement sqlStatement) {
+		final StatementRecord record = new StatementRecord(statement, sqlLink, sqlStatement,
+				mDetectionEnabled ? new Throwable("statement allocated here") : null);
+		mLiveStatements.add(record);
+		return record;
+	}
+	private static void reapCore() {
+		long lastScanTime = SystemClock.elapsedRealtime();
+		while (true) {
+			try {
+				final Reference<?> reference = mQueue.remove(SCAN_INTERVAL);
+				if (reference instanceof Record) {
+					final Record record = (Record) reference;
+					if (record.close()) {
+						mLeakCount.incrementAndGet();
+						report(record.mAllocationStack, "cursor was garbage collected without being closed");
+					}
+				} else if (reference instanceof StatementRecord) {
+					final StatementRecord record = (StatementRecord) reference;
+					// 被遗忘的语句状态未知, 直接关闭而不放回缓存
+					if (record.detach()) {
+						record.release(null, null);
+						mStatementLeakCount.incrementAndGet();
+						report(record.mAllocationStack, "statement was garbage collected without being closed");
+					}
+				}
+
+				final long now = SystemClock.elapsedRealtime();
+				if (mDetectionEnabled && mLeakThreshold > 0 && now - lastScanTime >= SCAN_INTERVAL) {
+					lastScanTime = now;
+					for (Record each : mLiveRecords) {
+						final long openDuration = now - each.mOpenTime;
+						if (openDuration > mLeakThreshold && each.mReported == false) {
+							each.mReported = true;
+							report(each.mAllocationStack, String.format(Locale.getDefault(), "cursor has been open for %dms", openDuration));
+						}
+					}
+				}
+
+			} catch (InterruptedException e) {
+				break;
+
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	private static void report(Throwable allocationStack, String header) {
+		final Debugger debugger = Debugger.get();
+		if (debugger == null)
+			return;
+
+		if (allocationStack != null) {
+			debugger.logThrowable(LOG_TAG, Logger.LOG_CONSOLE | Logger.LOG_PERSISTENCE, header, allocationStack);
+		} else {
+			debugger.log(LOG_TAG, Logger.LOG_CONSOLE, header);
+		}
+	}
+
+	// ### 内嵌类 ###
+	// 虚引用不持有游标本身, 只持有关闭游标需要的底层对象.
+	static class Record extends PhantomReference<ManagedCursor> {
+		private final SQLiteDatabaseLink mSqlLink;
+		private final Cursor mSqlCursor;
+		private final Throwable mAllocationStack;
+		private final long mOpenTime = SystemClock.elapsedRealtime();
+		private final AtomicBoolean mClosed = new AtomicBoolean(false);
+		private volatile boolean mReported = false;
+
+		private Record(ManagedCursor cursor, SQLiteDatabaseLink sqlLink, Cursor sqlCursor, Throwable allocationStack) {
+			super(cursor, mQueue);
+
+			mSqlLink = sqlLink;
+			mSqlCursor = sqlCursor;
+			mAllocationStack = allocationStack;
+		}
+
+		// 只有第一次调用真正关闭游标并返回true
+		public boolean close() {
+			if (mClosed.compareAndSet(false, true) == false)
+				return false;
+
+			mLiveRecords.remove(this);
+			mLiveCount.decrementAndGet();
+			mClosedCount.incrementAndGet();
+			mTotalOpenDuration.addAndGet(SystemClock.elapsedRealtime() - mOpenTime);
+			try {
+				mSqlCursor.close();
+			} finally {
+				mSqlLink.releaseRef();
+			}
+			return true;
+		}
+	}
+	static class StatementRecord extends PhantomReference<ManagedDatabaseStatement> {
+		private final SQLiteDatabaseLink mSqlLink;
+		private final SQLiteStatement mSqlStatement;
+		private final Throwable mAllocationStack;
+		private final AtomicBoolean mClosed = new AtomicBoolean(false);
+
+		private StatementRecord(ManagedDatabaseStatement statement, SQLiteDatabaseLink sqlLink, SQLiteStatement sqlStatement, Throwable allocationStack) {
+			super(statement, mQueue);
+
+			mSqlLink = sqlLink;
+			mSqlStatement = sqlStatement;
+			mAllocationStack = allocationStack;
+		}
+
+		public boolean isClosed() {
+			return mClosed.get();
+		}
+		// 只有第一次调用返回true, 之后由调用方负责release()
+		public boolean detach() {
+			if (mClosed.compareAndSet(false, true) == false)
+				return false;
+
+			mLiveStatements.remove(this);
+			return true;
+		}
+		// cacheOwner不为null时把语句放回它的缓存, 否则关闭语句.
+		public void release(ManagedDatabase cacheOwner, String sql) {
+			try {
+				if (cacheOwner != null) {
+					cacheOwner.recycleStatement(sql, mSqlStatement);
+				} else {
+					mSqlStatement.close();
+				}
+			} finally {
+				mSqlLink.releaseRef();
+			}
+		}
+	}
+}
@@ -2,6 +2,8 @@ package com.common.database;
 
 import android.database.Cursor;
 
+import java.util.ArrayList;
+
 public class DbUtils {
 	public static short getShort(Cursor cursor, int index) {
 		return getShort(cursor, index, (short) 0);
@@ -43,4 +45,47 @@ public class DbUtils {
 			return cursor.getString(index);
 		}
 	}
+	public static float getFloat(Cursor cursor, int index) {
+		return getFloat(cursor, index, 0.0f);
+	}
+	public static float getFloat(Cursor cursor, int index, float defValue) {
+		if (cursor == null || cursor.isNull(index)) {
+			return defValue;
+		} else {
+			return cursor.getFloat(index);
+		}
+	}
+	public static double getDouble(Cursor cursor, int index) {
+		return getDouble(cursor, index, 0.0);
+	}
+	public static double getDouble(Cursor cursor, int index, double defValue) {
+		if (cursor == null || cursor.isNull(index)) {
+			return defValue;
+		} else {
+			return cursor.getDouble(index);
+		}
+	}
+	public static byte[] getBlob(Cursor cursor, int index) {
+		return getBlob(cursor, index, null);
+	}
+	public static byte[] getBlob(Cursor cursor, int index, byte[] defValue) {
+		if (cursor == null || cursor.isNull(index)) {
+			return defValue;
+		} else {
+			return cursor.getBlob(index);
+		}
+	}
+	public static <T> ArrayList<T> mapRows(Cursor cursor, RowMapper<T> mapper) {
+		return mapRows(cursor, mapper, Integer.MAX_VALUE);
+	}
+	public static <T> ArrayList<T> mapRows(Cursor cursor, RowMapper<T> mapper, int maxCount) {
+		final ArrayList<T> rowList = new ArrayList<T>(Math.max(0, Math.min(cursor.getCount(), maxCount)));
+		if (rowList.size() < maxCount && cursor.moveToFirst()) {
+			mapper.bindColumns(cursor);
+			do {
+				rowList.add(mapper.mapRow(cursor));
+			} while (rowList.size() < maxCount && cursor.moveToNext());
+		}
+		return rowList;
+	}
 }
@@ -0,0 +1,214 @@
+package com.common.database;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 在BinaryCodec的基础上支持带有{@link ArchiveField}注解字段的对象(需要有无参构造函数).
+ * 只保存注解过的字段, 读取时忽略不认识的编号, 类型不匹配的字段保留构造函数中的默认值.
+ * 类名在每条记录中只写一次, 同一条记录中再次出现的类用首次出现的序号代替; 版本1的记录没有序号, 仍然可以读取.
+ */
+public class FieldCodec extends BinaryCodec {
+	public static final int TAG = 2;
+	private static final int VERSION = 2;
+	protected static final int TYPE_OBJECT = 32;
+	protected static final int TYPE_OBJECT_REF = 33;
+	protected static final int FIELD_END = 0;
+	private static final ConcurrentHashMap<Class<?>, ClassInfo> mClassInfos = new ConcurrentHashMap<Class<?>, ClassInfo>();
+	// 当前线程正在编码或解码的记录中已经出现过的类, 按出现的顺序编号
+	private static final ThreadLocal<ArrayList<ClassInfo>> mRecordClasses = new ThreadLocal<ArrayList<ClassInfo>>() {
+		@Override
+		protected ArrayList<ClassInfo> initialValue() {
+			return new ArrayList<ClassInfo>();
+		}
+	};
+
+	// ### ArchiveCodec接口实现 ###
+	@Override
+	public int getTag() {
+		return TAG;
+	}
+	@Override
+	public int getVersion() {
+		return VERSION;
+	}
+	@Override
+	public void encode(Object object, ArchiveOutput out) throws IOException {
+		final ArrayList<ClassInfo> classes = mRecordClasses.get();
+		classes.clear();
+		try {
+			super.encode(object, out);
+		} finally {
+			classes.clear();
+		}
+	}
+	@Override
+	public Object decode(ArchiveInput in, int version) throws IOException {
+		final ArrayList<ClassInfo> classes = mRecordClasses.get();
+		classes.clear();
+		try {
+			return super.decode(in, version);
+		} finally {
+			classes.clear();
+		}
+	}
+
+	// ### BinaryCodec函数重写 ###
+	@Override
+	protected boolean isValueType(Class<?> cls) {
+		return super.isValueType(cls) || getClassInfo(cls) != null;
+	}
+	@Override
+	protected void writeOtherValue(Object value, ArchiveOutput out) throws IOException {
+		final ClassInfo info = getClassInfo(value.getClass());
+		if (info == null) {
+			super.writeOtherValue(value, out);
+			return;
+		}
+
+		final ArrayList<ClassInfo> classes = mRecordClasses.get();
+		final int index = classes.indexOf(info);
+		if (index < 0) {
+			classes.add(info);
+			out.writeByte(TYPE_OBJECT);
+			out.writeString(value.getClass().getName());
+		} else {
+			out.writeByte(TYPE_OBJECT_REF);
+			out.writeVarLong(index);
+		}
+		try {
+			for (int n = 0; n < info.mFields.length; ++n) {
+				out.writeVarLong(info.mIds[n]);
+				writeValue(info.mFields[n].get(value), out);
+			}
+		} catch (IllegalAccessException e) {
+			throw new IOException(e.toString());
+		}
+		out.writeVarLong(FIELD_END);
+	}
+	@Override
+	protected Object readOtherValue(int type, ArchiveInput in) throws IOException {
+		final ArrayList<ClassInfo> classes = mRecordClasses.get();
+		final ClassInfo info;
+		if (type == TYPE_OBJECT) {
+			info = readClassInfo(in);
+			classes.add(info);
+		} else if (type == TYPE_OBJECT_REF) {
+			final long index = in.readVarLong();
+			if (index < 0 || index >= classes.size())
+				throw new IOException("malformed class index: " + index);
+			info = classes.get((int) index);
+		} else {
+			return super.readOtherValue(type, in);
+		}
+
+		final Object object;
+		try {
+			object = info.mConstructor.newInstance();
+		} catch (Throwable e) {
+			throw new IOException(e.toString());
+		}
+
+		while (true) {
+			final int id = (int) in.readVarLong();
+			if (id == FIELD_END)
+				break;
+
+			final Object value = readValue(in);
+			final Field field = info.findField(id);
+			if (field == null)
+				continue;
+
+			try {
+				field.set(object, value);
+			} catch (IllegalArgumentException e) {
+				// 字段类型已经改变, 保留默认值
+			} catch (IllegalAccessException e) {
+				throw new IOException(e.toString());
+			}
+		}
+		return object;
+	}
+
+	// ### 实现函数 ###
+	private static ClassInfo readClassInfo(ArchiveInput in) throws IOException {
+		final String className = in.readString();
+		final ClassInfo info;
+		try {
+			info = getClassInfo(Class.forName(className));
+		} catch (Throwable e) {
+			throw new IOException(e.toString());
+		}
+		if (info == null)
+			throw new IOException("not archivable: " + className);
+		return info;
+	}
+	private static ClassInfo getClassInfo(Class<?> cls) {
+		ClassInfo info = mClassInfos.get(cls);
+		if (info == null) {
+			info = ClassInfo.inspect(cls);
+			mClassInfos.put(cls, info);
+		}
+		return info != ClassInfo.NONE ? info : null;
+	}
+
+	// ### 内嵌类 ###
+	private static class ClassInfo {
+		public static final ClassInfo NONE = new ClassInfo(null, new Field[0], new int[0]);
+		public final Constructor<?> mConstructor;
+		public final Field[] mFields;
+		public final int[] mIds;
+
+		private ClassInfo(Constructor<?> constructor, Field[] fields, int[] ids) {
+			mConstructor = constructor;
+			mFields = fields;
+			mIds = ids;
+		}
+
+		public Field findField(int id) {
+			for (int n = 0; n < mIds.length; ++n) {
+				if (mIds[n] == id)
+					return mFields[n];
+			}
+			return null;
+		}
+
+		public static ClassInfo inspect(Class<?> cls) {
+			if (cls.isArray() || cls.isInterface() || Modifier.isAbstract(cls.getModifiers()))
+				return NONE;
+
+			final ArrayList<Field> fields = new ArrayList<Field>();
+			for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					final ArchiveField annotation = field.getAnnotation(ArchiveField.class);
+					if (annotation == null || Modifier.isStatic(field.getModifiers()))
+						continue;
+
+					assert annotation.value() > 0;
+					field.setAccessible(true);
+					fields.add(field);
+				}
+			}
+			if (fields.isEmpty())
+				return NONE;
+
+			try {
+				final Constructor<?> constructor = cls.getDeclaredConstructor();
+				constructor.setAccessible(true);
+
+				final int[] ids = new int[fields.size()];
+				for (int n = 0; n < ids.length; ++n) {
+					ids[n] = fields.get(n).getAnnotation(ArchiveField.class).value();
+				}
+				return new ClassInfo(constructor, fields.toArray(new Field[fields.size()]), ids);
+
+			} catch (NoSuchMethodException e) {
+				return NONE;
+			}
+		}
+	}
+}
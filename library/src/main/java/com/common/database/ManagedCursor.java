@@ -11,27 +11,24 @@ import android.os.Build;
 import android.os.Bundle;
 
 public class ManagedCursor implements Cursor {
-	private final SQLiteDatabaseLink mSqlLink;
 	private final Cursor mSqlCursor;
+	private final CursorTracker.Record mRecord;
 	
 	// ### 构造函数 ###
 	protected ManagedCursor(SQLiteDatabaseLink sqlLink, Cursor sqlCursor) {
 		assert sqlLink != null;
 		assert sqlCursor != null;
 		
-		mSqlLink = sqlLink;
 		mSqlCursor = sqlCursor;
-		mSqlLink.acquireRef();
+		sqlLink.acquireRef();
+		// 忘记关闭的游标被回收后, 由CursorTracker负责关闭并释放数据库的引用.
+		mRecord = CursorTracker.track(this, sqlLink, sqlCursor);
 	}
 	
 	// ### Cursor接口实现 ###
 	@Override
 	public void close() {
-		if (isClosed())
-			return;
-		
-		mSqlCursor.close();
-		mSqlLink.releaseRef();
+		mRecord.close();
 	}
 	@Override
 	public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
@@ -196,10 +193,4 @@ public class ManagedCursor implements Cursor {
     public void setExtras(Bundle extras) {
         mSqlCursor.setExtras(extras);
     }
-
-    // ### Object函数重写 ###
-	@Override
-	public void finalize() {
-		close();
-	}
 }
@@ -2,15 +2,22 @@ package com.common.database;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.common.utils.FileUtils;
 import com.common.sys.MainThread;
 
 import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 // ATTENTION(by lizhan@duokan.com):
@@ -25,19 +32,39 @@ import java.util.concurrent.locks.ReentrantLock;
 //     mDb... // 此处容易发生死锁
 // }
 public class ManagedDatabase {
+	private static final int STATEMENT_CACHE_SIZE = 32;
+	// 框架按语句开头的三个字母判断类型, 以ROLLBACK开头的语句会被当作endTransaction()处理, 加上注释前缀才能执行ROLLBACK TO.
+	private static final String ROLLBACK_TO_PREFIX = "/* savepoint */ ROLLBACK TO ";
 	private final ReentrantLock mLock = new ReentrantLock();
 	private final ManagedDatabaseInfo mDbInfo;
 	private final SQLiteDatabaseLink mSqlLink;
+	private final boolean mWalEnabled;
+	// 空闲的预编译语句, 按最近使用的顺序排列. 它们属于当前打开的SQLiteDatabase, 引用计数归零关闭数据库时一并关闭.
+	private final LinkedHashMap<String, SQLiteStatement> mIdleStatements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true);
 	private boolean mClosed = false;
-	private boolean mBackuping = false;
+	private volatile boolean mBackuping = false;
 	private Runnable mBackupTask = null;
+	private volatile long mLastBackupTime = 0;
+	private volatile long mLastBackupDuration = 0;
+	private volatile long mLastBackupSize = 0;
+	private volatile int mBackupFailureCount = 0;
+	// 0表示尚未检测, 1表示支持, -1表示不支持
+	private volatile int mSavepointRollbackSupport = 0;
 	
 	// ### 构造函数 ###
 	public ManagedDatabase(String dbUri) {
 		this(dbUri, "");
 	}
 	public ManagedDatabase(String dbUri, String backupUri) {
+		this(dbUri, backupUri, false);
+	}
+	/**
+	 * @param walEnabled 是否以WAL模式打开数据库. WAL模式下框架为只读查询维护一个小的连接池,
+	 *                   不同线程上的查询不再和写事务互相阻塞.
+	 */
+	public ManagedDatabase(String dbUri, String backupUri, boolean walEnabled) {
 		mDbInfo = new ManagedDatabaseInfo(dbUri, backupUri);
+		mWalEnabled = walEnabled;
 		
 		if (TextUtils.isEmpty(mDbInfo.mBkUri) == false) {
 //			ManagedApp.get().addOnRunningStateChangedListener(new ManagedApp.OnRunningStateChangedListener() {
@@ -53,8 +80,9 @@ public class ManagedDatabase {
 		}
 		
 		mSqlLink = new SQLiteDatabaseLink() {
-			private SQLiteDatabase mSqlDb = null;
-			private int mRefCount = 1;
+			// 计数不归零数据库就不会被关闭, 所以平时只用原子操作增减计数; 只有打开数据库和计数归零(0与1之间的转换)时才加锁.
+			private final AtomicInteger mRefCount = new AtomicInteger(1);
+			private volatile SQLiteDatabase mSqlDb = null;
 			
 			@Override
 			public SQLiteDatabase getRef() {
@@ -62,36 +90,68 @@ public class ManagedDatabase {
 			}
 			@Override
 			public SQLiteDatabase acquireRef() {
+				while (true) {
+					final int refCount = mRefCount.get();
+					if (refCount < 1)
+						break;
+
+					if (mRefCount.compareAndSet(refCount, refCount + 1)) {
+						// 已经持有引用, 数据库不会再被关闭, 读到的不为null就一定可用.
+						final SQLiteDatabase sqlDb = mSqlDb;
+						return sqlDb != null ? sqlDb : openIfNeeded(false);
+					}
+				}
+
+				return openIfNeeded(true);
+			}
+			@Override
+			public void releaseRef() {
+				while (true) {
+					final int refCount = mRefCount.get();
+					if (refCount <= 1)
+						break;
+
+					if (mRefCount.compareAndSet(refCount, refCount - 1))
+						return;
+				}
+
+				mLock.lock();
+				try {
+					if (mRefCount.decrementAndGet() == 0 && mSqlDb != null) {
+						closeIdleStatements();
+						mSqlDb.close();
+						mSqlDb = null;
+					}
+				} finally {
+					mLock.unlock();
+				}
+			}
+
+			private SQLiteDatabase openIfNeeded(boolean increaseRef) {
 				mLock.lock();
 				try {
-					if (++mRefCount > 1 && mSqlDb == null) {
+					final int refCount = increaseRef ? mRefCount.incrementAndGet() : mRefCount.get();
+					if (refCount > 1 && mSqlDb == null) {
 						restoreDatabase();
+						SQLiteDatabase sqlDb;
 						try {
 							final File dbFile = new File(Uri.parse(mDbInfo.mDbUri).getPath());
                             File parentFile = dbFile.getParentFile();
                             if (!parentFile.exists()) {
                                 parentFile.mkdirs();
                             }
-							mSqlDb = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+							sqlDb = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+							if (mWalEnabled) {
+								// 必须在打开后, 任何事务开始前切换
+								sqlDb.enableWriteAheadLogging();
+							}
 						} catch (Throwable e) {
 							e.printStackTrace();
-							mSqlDb = SQLiteDatabase.create(null);
+							sqlDb = SQLiteDatabase.create(null);
 						}
+						mSqlDb = sqlDb;
 					}
-				} finally {
-					mLock.unlock();
-				}
-				
-				return mSqlDb;
-			}
-			@Override
-			public void releaseRef() {
-				mLock.lock();
-				try {
-					if (--mRefCount == 0 && mSqlDb != null) {
-						mSqlDb.close();
-						mSqlDb = null;
-					}
+					return mSqlDb;
 				} finally {
 					mLock.unlock();
 				}
@@ -106,6 +166,36 @@ public class ManagedDatabase {
 	public String getBackupUri() {
 		return mDbInfo.mBkUri;
 	}
+	public boolean isWriteAheadLoggingEnabled() {
+		return mWalEnabled;
+	}
+	public boolean isBackuping() {
+		return mBackuping;
+	}
+	/**
+	 * 正在进行的备份的大致进度(0~1), 按已写入的备份文件大小估算. 没有备份在进行时返回1.
+	 */
+	public float getBackupProgress() {
+		if (mBackuping == false)
+			return 1.0f;
+
+		final long dbSize = new File(Uri.parse(mDbInfo.mDbUri).getPath()).length();
+		final long tmpSize = new File(Uri.parse(mDbInfo.mBkUri + ".tmp").getPath()).length();
+		return dbSize > 0 ? Math.min(1.0f, (float) tmpSize / dbSize) : 0.0f;
+	}
+	// 最近一次成功备份的完成时间(System.currentTimeMillis()), 从未成功时为0.
+	public long getLastBackupTime() {
+		return mLastBackupTime;
+	}
+	public long getLastBackupDuration() {
+		return mLastBackupDuration;
+	}
+	public long getLastBackupSize() {
+		return mLastBackupSize;
+	}
+	public int getBackupFailureCount() {
+		return mBackupFailureCount;
+	}
 	
 	// ### 方法 ###
 //	public void beginTransaction() {
@@ -150,14 +240,86 @@ public class ManagedDatabase {
 		// 这里申请的引用由endTransaction()负责释放
 		mSqlLink.acquireRef().beginTransaction();
 	}
-//TODO(by lizhan@duokan.com): 返回值需要转换成ManagedDatabaseStatement...
-//	public SQLiteStatement compileStatement(String sql) {
-//		try {
-//			return mSqlLink.acquireRef().compileStatement(sql);
-//		} finally {
-//			mSqlLink.releaseRef();
-//		}
-//	}
+	public ManagedDatabaseStatement compileStatement(String sql) throws SQLException {
+		try {
+			// 返回的语句持有数据库的引用, 由ManagedDatabaseStatement.close()负责释放.
+			final SQLiteStatement sqlStatement = mSqlLink.acquireRef().compileStatement(sql);
+			return new ManagedDatabaseStatement(mSqlLink, sqlStatement);
+		} finally {
+			mSqlLink.releaseRef();
+		}
+	}
+	/**
+	 * 和compileStatement()相同, 但语句来自按SQL文本索引的缓存, close()时清除绑定的参数并放回缓存.
+	 * 取出的语句由调用方独占, 多个线程同时使用同一条SQL时各自拿到不同的语句.
+	 */
+	public ManagedDatabaseStatement obtainStatement(String sql) throws SQLException {
+		try {
+			final SQLiteDatabase sqlDb = mSqlLink.acquireRef();
+
+			SQLiteStatement sqlStatement;
+			mLock.lock();
+			try {
+				sqlStatement = mIdleStatements.remove(sql);
+			} finally {
+				mLock.unlock();
+			}
+
+			if (sqlStatement == null) {
+				sqlStatement = sqlDb.compileStatement(sql);
+			}
+			return new ManagedDatabaseStatement(mSqlLink, sqlStatement, this, sql);
+		} finally {
+			mSqlLink.releaseRef();
+		}
+	}
+	public void beginSavepoint(String name) {
+		execSQL("SAVEPOINT " + name);
+	}
+	public void releaseSavepoint(String name) {
+		execSQL("RELEASE " + name);
+	}
+	// 只有supportsSavepointRollback()返回true时才能调用
+	public void rollbackToSavepoint(String name) {
+		assert mSavepointRollbackSupport > 0;
+		execSQL(ROLLBACK_TO_PREFIX + name);
+	}
+	/**
+	 * 检测rollbackToSavepoint()能否只回滚到保存点. 注释前缀绕过语句类型判断依赖框架的实现,
+	 * 所以第一次调用时在一个空事务中实际执行一次: 如果事务被当作endTransaction()结束了, 就认为不支持.
+	 * 检测结果会被缓存. 不能在事务中调用.
+	 */
+	public boolean supportsSavepointRollback() {
+		if (mSavepointRollbackSupport == 0) {
+			try {
+				final SQLiteDatabase sqlDb = mSqlLink.acquireRef();
+				assert sqlDb.inTransaction() == false;
+
+				boolean supported = false;
+				sqlDb.beginTransaction();
+				try {
+					sqlDb.execSQL("SAVEPOINT probe");
+					sqlDb.execSQL(ROLLBACK_TO_PREFIX + "probe");
+					supported = sqlDb.inTransaction();
+					if (supported) {
+						sqlDb.execSQL("RELEASE probe");
+					}
+				} finally {
+					if (sqlDb.inTransaction()) {
+						sqlDb.endTransaction();
+					}
+				}
+				mSavepointRollbackSupport = supported ? 1 : -1;
+
+			} catch (Throwable e) {
+				e.printStackTrace();
+				mSavepointRollbackSupport = -1;
+			} finally {
+				mSqlLink.releaseRef();
+			}
+		}
+		return mSavepointRollbackSupport > 0;
+	}
 	public int delete(String table, String whereClause, String[] whereArgs) {
 		try {
 			return mSqlLink.acquireRef().delete(table, whereClause, whereArgs);
@@ -261,6 +423,12 @@ public class ManagedDatabase {
 			mSqlLink.releaseRef();
 		}
 	}
+	/**
+	 * 返回按窗口分段加载并在后台预取的游标, 见{@link PrefetchCursor}. windowSize为每个窗口的行数.
+	 */
+	public PrefetchCursor rawQueryPrefetch(String sql, String[] selectionArgs, int windowSize) {
+		return new PrefetchCursor(this, sql, selectionArgs, windowSize);
+	}
 	public long replace(String table, String nullColumnHack, ContentValues initialValues) {
 		try {
 			return mSqlLink.acquireRef().replace(table, nullColumnHack, initialValues);
@@ -303,6 +471,21 @@ public class ManagedDatabase {
 			mSqlLink.releaseRef();
 		}
 	}
+	/**
+	 * 15秒后在后台线程备份数据库(没有设置备份路径时什么也不做). 支持VACUUM INTO的系统上(SQLite 3.27+)
+	 * 数据库保持打开, 备份通过独立的只读连接读取一致的快照; 否则只能等数据库没有任何引用时复制文件.
+	 */
+	public void requestBackup() {
+		if (TextUtils.isEmpty(mDbInfo.mBkUri))
+			return;
+
+		mLock.lock();
+		try {
+			scheduleBackup();
+		} finally {
+			mLock.unlock();
+		}
+	}
 	public void close() {
 		final boolean closed;
 		mLock.lock();
@@ -315,10 +498,40 @@ public class ManagedDatabase {
 		
 		if (closed == false) {
 			mSqlLink.releaseRef();
+			// 关闭时保存最后的修改
+			requestBackup();
 		}
 	}
 	
 	// ### 实现函数 ###
+	// 由ManagedDatabaseStatement.close()调用, 此时语句仍持有数据库的引用.
+	void recycleStatement(String sql, SQLiteStatement sqlStatement) {
+		sqlStatement.clearBindings();
+
+		mLock.lock();
+		try {
+			final SQLiteStatement oldStatement = mIdleStatements.put(sql, sqlStatement);
+			if (oldStatement != null) {
+				oldStatement.close();
+			}
+
+			final Iterator<Map.Entry<String, SQLiteStatement>> iterator = mIdleStatements.entrySet().iterator();
+			while (mIdleStatements.size() > STATEMENT_CACHE_SIZE && iterator.hasNext()) {
+				iterator.next().getValue().close();
+				iterator.remove();
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+	private void closeIdleStatements() {
+		assert mLock.isHeldByCurrentThread();
+
+		for (SQLiteStatement sqlStatement : mIdleStatements.values()) {
+			sqlStatement.close();
+		}
+		mIdleStatements.clear();
+	}
 	private void cancelBackup() {
 		if (mBackuping)
 			return;
@@ -355,17 +568,33 @@ public class ManagedDatabase {
 				final Thread backupThread = new Thread(new Runnable() {
 					@Override
 					public void run() {
-						mLock.lock();
+						final long startTime = SystemClock.elapsedRealtime();
+						boolean succeed = false;
 						try {
-							if (mClosed) {
-								doBackupDatabase(dbFile, bkFile);
+							if (supportsOnlineBackup(dbFile)) {
+								succeed = doOnlineBackupDatabase(dbFile, bkFile);
 							} else {
-								mSqlLink.releaseRef();
-								doBackupDatabase(dbFile, bkFile);
-								mSqlLink.acquireRef();
+								mLock.lock();
+								try {
+									if (mClosed) {
+										succeed = doBackupDatabase(dbFile, bkFile);
+									} else {
+										mSqlLink.releaseRef();
+										succeed = doBackupDatabase(dbFile, bkFile);
+										mSqlLink.acquireRef();
+									}
+								} finally {
+									mLock.unlock();
+								}
 							}
 						} finally {
-							mLock.unlock();
+							if (succeed) {
+								mLastBackupTime = System.currentTimeMillis();
+								mLastBackupDuration = SystemClock.elapsedRealtime() - startTime;
+								mLastBackupSize = bkFile.length();
+							} else {
+								++mBackupFailureCount;
+							}
 							mBackuping = false;
 						}
 					}
@@ -377,22 +606,78 @@ public class ManagedDatabase {
 		
 		MainThread.runLater(mBackupTask, 15000);
 	}
-	private void doBackupDatabase(File dbFile, File bkFile) {
+	private boolean doBackupDatabase(File dbFile, File bkFile) {
 		assert mLock.isHeldByCurrentThread();
 		if (mSqlLink.getRef() != null)
-			return;
+			return false;
 
 		try {
 			final File tmpFile = new File(Uri.parse(mDbInfo.mBkUri + ".tmp").getPath());
-			if (FileUtils.copyFile(dbFile, tmpFile)) {
+			if (FileUtils.copyFile(dbFile, tmpFile) && checkIntegrity(tmpFile)) {
 				bkFile.delete();
-				tmpFile.renameTo(bkFile);
+				return tmpFile.renameTo(bkFile);
 			} else {
 				tmpFile.delete();
 			}
 		} catch (Throwable e) {
 			
 		}
+		return false;
+	}
+	// 在独立的只读连接上执行VACUUM INTO, 读取的是一个一致的快照, WAL模式下不阻塞写操作.
+	private boolean doOnlineBackupDatabase(File dbFile, File bkFile) {
+		final File tmpFile = new File(Uri.parse(mDbInfo.mBkUri + ".tmp").getPath());
+		tmpFile.delete();
+
+		SQLiteDatabase backupDb = null;
+		try {
+			backupDb = SQLiteDatabase.openDatabase(dbFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+			backupDb.execSQL("VACUUM INTO ?", new Object[] { tmpFile.getPath() });
+		} catch (Throwable e) {
+			e.printStackTrace();
+			tmpFile.delete();
+			return false;
+		} finally {
+			if (backupDb != null) {
+				backupDb.close();
+			}
+		}
+
+		if (checkIntegrity(tmpFile) == false) {
+			tmpFile.delete();
+			return false;
+		}
+		bkFile.delete();
+		return tmpFile.renameTo(bkFile);
+	}
+	private static boolean supportsOnlineBackup(File dbFile) {
+		SQLiteDatabase db = null;
+		try {
+			db = SQLiteDatabase.openDatabase(dbFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+			final String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null).split("\\.");
+			final int major = Integer.parseInt(version[0]);
+			final int minor = Integer.parseInt(version[1]);
+			return major > 3 || (major == 3 && minor >= 27);
+		} catch (Throwable e) {
+			return false;
+		} finally {
+			if (db != null) {
+				db.close();
+			}
+		}
+	}
+	private static boolean checkIntegrity(File dbFile) {
+		SQLiteDatabase db = null;
+		try {
+			db = SQLiteDatabase.openDatabase(dbFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+			return "ok".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA integrity_check", null));
+		} catch (Throwable e) {
+			return false;
+		} finally {
+			if (db != null) {
+				db.close();
+			}
+		}
 	}
 	private void restoreDatabase() {
 		assert mLock.isHeldByCurrentThread();
@@ -406,7 +691,8 @@ public class ManagedDatabase {
 		if (dbFile.exists() == false && bkFile.exists()) {
 			final File tmpFile = new File(Uri.parse(mDbInfo.mDbUri + ".tmp").getPath());
 			try {
-				if (FileUtils.copyFile(bkFile, tmpFile)) {
+				// 损坏的备份不如空数据库, 校验不通过时不恢复
+				if (FileUtils.copyFile(bkFile, tmpFile) && checkIntegrity(tmpFile)) {
 					tmpFile.renameTo(dbFile);
 				} else {
 					tmpFile.delete();
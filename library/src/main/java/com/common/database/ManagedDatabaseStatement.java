@@ -0,0 +1,95 @@
+package com.common.database;
+
+import android.annotation.TargetApi;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+// ATTENTION: SQLiteStatement不是线程安全的, 同一个语句只能在一个线程中使用(例如AsyncDatabase的写线程).
+public class ManagedDatabaseStatement {
+	private final SQLiteStatement mSqlStatement;
+	private final ManagedDatabase mCacheOwner;
+	private final String mSql;
+	private final CursorTracker.StatementRecord mRecord;
+
+	// ### 构造函数 ###
+	protected ManagedDatabaseStatement(SQLiteDatabaseLink sqlLink, SQLiteStatement sqlStatement) {
+		this(sqlLink, sqlStatement, null, null);
+	}
+	// cacheOwner不为null时, close()把语句放回它的缓存而不是关闭.
+	protected ManagedDatabaseStatement(SQLiteDatabaseLink sqlLink, SQLiteStatement sqlStatement, ManagedDatabase cacheOwner, String sql) {
+		assert sqlLink != null;
+		assert sqlStatement != null;
+
+		mSqlStatement = sqlStatement;
+		mCacheOwner = cacheOwner;
+		mSql = sql;
+		sqlLink.acquireRef();
+		// 忘记关闭的语句被回收后, 由CursorTracker负责关闭并释放数据库的引用.
+		mRecord = CursorTracker.track(this, sqlLink, sqlStatement);
+	}
+
+	// ### 方法 ###
+	public void bindNull(int index) {
+		mSqlStatement.bindNull(index);
+	}
+	public void bindLong(int index, long value) {
+		mSqlStatement.bindLong(index, value);
+	}
+	public void bindDouble(int index, double value) {
+		mSqlStatement.bindDouble(index, value);
+	}
+	public void bindString(int index, String value) {
+		// SQLiteStatement.bindString()不接受null
+		if (value == null) {
+			mSqlStatement.bindNull(index);
+		} else {
+			mSqlStatement.bindString(index, value);
+		}
+	}
+	public void bindBlob(int index, byte[] value) {
+		if (value == null) {
+			mSqlStatement.bindNull(index);
+		} else {
+			mSqlStatement.bindBlob(index, value);
+		}
+	}
+	// 按值的类型绑定, 规则与SQLiteDatabase.execSQL(String, Object[])相同.
+	public void bindAllArgs(Object[] bindArgs) {
+		for (int n = 0; n < bindArgs.length; ++n) {
+			DatabaseUtils.bindObjectToProgram(mSqlStatement, n + 1, bindArgs[n]);
+		}
+	}
+	public void bindAllArgsAsStrings(String[] bindArgs) {
+		mSqlStatement.bindAllArgsAsStrings(bindArgs);
+	}
+	public void clearBindings() {
+		mSqlStatement.clearBindings();
+	}
+	public void execute() throws SQLException {
+		mSqlStatement.execute();
+	}
+	public long executeInsert() throws SQLException {
+		return mSqlStatement.executeInsert();
+	}
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public int executeUpdateDelete() throws SQLException {
+		return mSqlStatement.executeUpdateDelete();
+	}
+	public long simpleQueryForLong() throws SQLException {
+		return mSqlStatement.simpleQueryForLong();
+	}
+	public String simpleQueryForString() throws SQLException {
+		return mSqlStatement.simpleQueryForString();
+	}
+	public boolean isClosed() {
+		return mRecord.isClosed();
+	}
+	public void close() {
+		if (mRecord.detach() == false)
+			return;
+
+		mRecord.release(mCacheOwner, mSql);
+	}
+}
@@ -0,0 +1,30 @@
+package com.common.database;
+
+/**
+ * 数据库结构的一次升级, 由AsyncDatabase按版本号从小到大依次执行.
+ * 每次调用migrate()都在写线程上的一个独立事务中进行, 进度随事务一起提交,
+ * 进程被杀死后下次启动会从最后提交的进度继续.
+ */
+public abstract class Migration {
+	public static final long DONE = -1;
+	private final int mVersion;
+
+	// ### 构造函数 ###
+	public Migration(int version) {
+		mVersion = version;
+	}
+
+	// ### 属性 ###
+	public final int getVersion() {
+		return mVersion;
+	}
+
+	// ### 抽象函数 ###
+	/**
+	 * 执行一段升级工作. 耗时较长的升级(重建表, 回填数据等)应每次只处理一批数据.
+	 *
+	 * @param progress 上一次返回的进度, 第一次调用时为0.
+	 * @return 全部完成时返回{@link #DONE}, 否则返回新的进度(>= 0), 之后会在新的事务中继续调用.
+	 */
+	protected abstract long migrate(ManagedDatabase db, long progress);
+}
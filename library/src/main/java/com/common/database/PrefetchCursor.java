@@ -0,0 +1,359 @@
+package com.common.database;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.common.sys.MainThread;
+import com.common.sys.PooledThread;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按固定大小的窗口分段读取查询结果的游标. 所有窗口都从同一个底层游标顺序读出并复制到内存, 不会为每个窗口重新执行查询,
+ * 也不受CursorWindow大小的限制. 底层游标在close()之前一直打开, 期间持有数据库的引用.
+ *
+ * 移动游标时会在后台预取移动方向上的下一个窗口. 在主线程上移动到尚未加载的行不会等待查询,
+ * isRowLoaded()返回false, 取到的值都为空; 窗口加载完成后在主线程上回调OnWindowLoadedListener.
+ * 在其它线程上移动则直接同步加载.
+ */
+public class PrefetchCursor extends AbstractCursor {
+	public static final int DEFAULT_WINDOW_SIZE = 200;
+	private static final int MAX_WINDOW_COUNT = 4;
+	private static final String PREFETCH_QUEUE_PREFIX = "cursor-prefetch-";
+	private static final AtomicInteger sQueueSerial = new AtomicInteger(0);
+	// 每个游标使用自己的队列, 一个游标的预取不会排在其它游标后面
+	private final String mQueueName = PREFETCH_QUEUE_PREFIX + sQueueSerial.incrementAndGet();
+	// 底层游标只在持有mSourceLock时访问, 平时由预取队列使用, 非主线程上的同步加载也会用到
+	private final Object mSourceLock = new Object();
+	private Cursor mSource;
+	private final int mWindowSize;
+	private final int mCount;
+	private final String[] mColumnNames;
+	private final LinkedHashMap<Integer, Window> mWindows;
+	private final HashSet<Integer> mLoadingWindows = new HashSet<Integer>();
+	private OnWindowLoadedListener mWindowLoadedListener = null;
+	private Object[] mRow = null;
+	private int mRefillCount = 0;
+	private int mMissCount = 0;
+	private int mWastedRefillCount = 0;
+	private volatile boolean mReleased = false;
+
+	// ### 接口 ###
+	public interface OnWindowLoadedListener {
+		void onWindowLoaded(PrefetchCursor cursor, int fromPosition, int toPosition);
+	}
+
+	// ### 构造函数 ###
+	// 执行查询并同步加载第一个窗口, 和普通查询一样不应在主线程上创建.
+	protected PrefetchCursor(ManagedDatabase db, String sql, String[] selectionArgs, int windowSize) {
+		mWindowSize = Math.max(1, windowSize);
+		mWindows = new LinkedHashMap<Integer, Window>(MAX_WINDOW_COUNT + 1, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Window> eldest) {
+				if (size() <= MAX_WINDOW_COUNT)
+					return false;
+
+				if (eldest.getValue().mUsed == false) {
+					++mWastedRefillCount;
+				}
+				return true;
+			}
+		};
+
+		// 底层游标统计行数时顺序走完一遍结果, 之后只有越出它自己的CursorWindow时才重新填充
+		mSource = db.rawQuery(sql, selectionArgs);
+		mCount = mSource.getCount();
+		mColumnNames = mSource.getColumnNames();
+
+		final Window firstWindow = loadWindow(0);
+		synchronized (mWindows) {
+			++mRefillCount;
+			mWindows.put(0, firstWindow);
+		}
+	}
+
+	// ### 属性 ###
+	public int getWindowSize() {
+		return mWindowSize;
+	}
+	// 查询窗口的总次数
+	public int getRefillCount() {
+		synchronized (mWindows) {
+			return mRefillCount;
+		}
+	}
+	// 移动到尚未加载的窗口的次数
+	public int getMissCount() {
+		synchronized (mWindows) {
+			return mMissCount;
+		}
+	}
+	// 加载后一行也没有被访问就被淘汰的窗口数, 数值偏大说明预取的方向或窗口大小不合适.
+	public int getWastedRefillCount() {
+		synchronized (mWindows) {
+			return mWastedRefillCount;
+		}
+	}
+	public boolean isRowLoaded() {
+		return currentRow() != null;
+	}
+	public void setOnWindowLoadedListener(OnWindowLoadedListener listener) {
+		mWindowLoadedListener = listener;
+	}
+
+	// ### AbstractCursor函数重写 ###
+	@Override
+	public boolean onMove(int oldPosition, int newPosition) {
+		final int windowIndex = newPosition / mWindowSize;
+		Window window;
+		synchronized (mWindows) {
+			window = mWindows.get(windowIndex);
+			if (window == null) {
+				++mMissCount;
+			}
+		}
+
+		if (window == null) {
+			if (MainThread.is()) {
+				requestWindow(windowIndex);
+			} else {
+				window = loadWindow(windowIndex);
+				if (window != null) {
+					synchronized (mWindows) {
+						++mRefillCount;
+						mWindows.put(windowIndex, window);
+					}
+				}
+			}
+		}
+
+		mRow = window != null ? window.getRow(newPosition) : null;
+
+		// 越过窗口的一半后预取移动方向上的下一个窗口
+		final int offset = newPosition - windowIndex * mWindowSize;
+		if (newPosition >= oldPosition) {
+			if (offset >= mWindowSize / 2) {
+				requestWindow(windowIndex + 1);
+			}
+		} else if (offset < mWindowSize / 2) {
+			requestWindow(windowIndex - 1);
+		}
+		return true;
+	}
+	@Override
+	public int getCount() {
+		return mCount;
+	}
+	@Override
+	public String[] getColumnNames() {
+		return mColumnNames;
+	}
+	@Override
+	public int getType(int column) {
+		final Object value = getValue(column);
+		if (value == null) {
+			return Cursor.FIELD_TYPE_NULL;
+		} else if (value instanceof Long) {
+			return Cursor.FIELD_TYPE_INTEGER;
+		} else if (value instanceof Double) {
+			return Cursor.FIELD_TYPE_FLOAT;
+		} else if (value instanceof byte[]) {
+			return Cursor.FIELD_TYPE_BLOB;
+		} else {
+			return Cursor.FIELD_TYPE_STRING;
+		}
+	}
+	@Override
+	public String getString(int column) {
+		final Object value = getValue(column);
+		return value != null && (value instanceof byte[]) == false ? value.toString() : null;
+	}
+	@Override
+	public short getShort(int column) {
+		return (short) getLong(column);
+	}
+	@Override
+	public int getInt(int column) {
+		return (int) getLong(column);
+	}
+	@Override
+	public long getLong(int column) {
+		final Object value = getValue(column);
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		} else if (value instanceof String) try {
+			return Long.parseLong((String) value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+		return 0;
+	}
+	@Override
+	public float getFloat(int column) {
+		return (float) getDouble(column);
+	}
+	@Override
+	public double getDouble(int column) {
+		final Object value = getValue(column);
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		} else if (value instanceof String) try {
+			return Double.parseDouble((String) value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+		return 0;
+	}
+	@Override
+	public byte[] getBlob(int column) {
+		final Object value = getValue(column);
+		return value instanceof byte[] ? (byte[]) value : null;
+	}
+	@Override
+	public boolean isNull(int column) {
+		return getValue(column) == null;
+	}
+	@Override
+	public void close() {
+		super.close();
+
+		mReleased = true;
+		synchronized (mWindows) {
+			mWindows.clear();
+		}
+		mRow = null;
+
+		// 排在已经提交的预取之后关闭底层游标, 不必在调用线程上等待正在进行的加载
+		PooledThread.runInQueue(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (mSourceLock) {
+					if (mSource != null) {
+						mSource.close();
+						mSource = null;
+					}
+				}
+			}
+		}, mQueueName);
+	}
+
+	// ### 实现函数 ###
+	private Object getValue(int column) {
+		checkPosition();
+		final Object[] row = currentRow();
+		return row != null ? row[column] : null;
+	}
+	private Object[] currentRow() {
+		if (mRow == null && mPos >= 0 && mPos < mCount) {
+			// 移动时窗口还没有加载, 之后可能已经由后台加载完成
+			synchronized (mWindows) {
+				final Window window = mWindows.get(mPos / mWindowSize);
+				if (window != null) {
+					mRow = window.getRow(mPos);
+				}
+			}
+		}
+		return mRow;
+	}
+	private void requestWindow(final int windowIndex) {
+		if (windowIndex < 0 || windowIndex * mWindowSize >= mCount || mReleased)
+			return;
+
+		synchronized (mWindows) {
+			if (mWindows.containsKey(windowIndex) || mLoadingWindows.add(windowIndex) == false)
+				return;
+		}
+
+		PooledThread.runInQueue(new Runnable() {
+			@Override
+			public void run() {
+				Window window = null;
+				try {
+					if (mReleased == false) {
+						window = loadWindow(windowIndex);
+					}
+				} catch (Throwable e) {
+					e.printStackTrace();
+				} finally {
+					synchronized (mWindows) {
+						mLoadingWindows.remove(windowIndex);
+						if (window != null && mReleased == false) {
+							++mRefillCount;
+							mWindows.put(windowIndex, window);
+						}
+					}
+				}
+
+				if (window != null) {
+					final Window loadedWindow = window;
+					MainThread.runLater(new Runnable() {
+						@Override
+						public void run() {
+							final OnWindowLoadedListener listener = mWindowLoadedListener;
+							if (listener != null && mReleased == false) {
+								listener.onWindowLoaded(PrefetchCursor.this, loadedWindow.mStart, loadedWindow.mStart + loadedWindow.mRows.length);
+							}
+						}
+					});
+				}
+			}
+		}, mQueueName);
+	}
+	// 游标已经关闭时返回null
+	private Window loadWindow(int windowIndex) {
+		synchronized (mSourceLock) {
+			final Cursor cursor = mSource;
+			if (cursor == null)
+				return null;
+
+			final int start = windowIndex * mWindowSize;
+			final int columnCount = mColumnNames.length;
+			final Object[][] rows = new Object[Math.max(0, Math.min(mWindowSize, mCount - start))][];
+			for (int n = 0; n < rows.length && cursor.moveToPosition(start + n); ++n) {
+				final Object[] row = new Object[columnCount];
+				for (int column = 0; column < columnCount; ++column) {
+					switch (cursor.getType(column)) {
+						case Cursor.FIELD_TYPE_INTEGER:
+							row[column] = cursor.getLong(column);
+							break;
+						case Cursor.FIELD_TYPE_FLOAT:
+							row[column] = cursor.getDouble(column);
+							break;
+						case Cursor.FIELD_TYPE_STRING:
+							row[column] = cursor.getString(column);
+							break;
+						case Cursor.FIELD_TYPE_BLOB:
+							row[column] = cursor.getBlob(column);
+							break;
+						default:
+							row[column] = null;
+							break;
+					}
+				}
+				rows[n] = row;
+			}
+			return new Window(start, rows);
+		}
+	}
+
+	// ### 内嵌类 ###
+	private static class Window {
+		public final int mStart;
+		public final Object[][] mRows;
+		public volatile boolean mUsed = false;
+
+		public Window(int start, Object[][] rows) {
+			mStart = start;
+			mRows = rows;
+		}
+
+		public Object[] getRow(int position) {
+			mUsed = true;
+			final int index = position - mStart;
+			return index < mRows.length ? mRows[index] : null;
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package com.common.database;
+
+import android.database.Cursor;
+
+// 把游标中的一行转换成对象. bindColumns()对每个游标只调用一次, 实现应在其中缓存列序号, mapRow()中只按序号取值.
+public interface RowMapper<T> {
+	void bindColumns(Cursor cursor);
+	T mapRow(Cursor cursor);
+}
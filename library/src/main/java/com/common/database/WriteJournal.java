@@ -0,0 +1,307 @@
+package com.common.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * AsyncDatabase的追加式写日志. 写操作先追加到日志文件, 由后台线程每隔SYNC_DELAY合并同步一次磁盘,
+ * 同步完成后才确认写操作; 进程被杀死时, 已确认但尚未写入数据库的操作可以在下次打开时重新执行.
+ *
+ * 文件格式: [8字节起始序号] 之后是若干条记录 [4字节负载长度][8字节序号][4字节操作码][负载][4字节CRC32].
+ * 打开时丢弃校验失败的尾部(写到一半的记录). 全部记录都已写入数据库后, 日志重建为只有文件头的空文件,
+ * 文件头记下之后的起始序号, 所以序号不会重复使用.
+ */
+class WriteJournal {
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_OVERHEAD = 4 + 8 + 4 + 4;
+	private static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+	private static final long SYNC_DELAY = 10; // 毫秒
+	private static final long COMPACT_SIZE = 256 * 1024;
+	// 所有日志共用一个同步线程, 同步和重建文件都在这个线程上执行, 不会同时进行.
+	private static final ScheduledExecutorService mSyncer = Executors.newSingleThreadScheduledExecutor();
+	private final File mFile;
+	private final Object mLock = new Object();
+	private List<Record> mRecoveredRecords;
+	private FileChannel mChannel;
+	private ByteBuffer mBuffer = ByteBuffer.allocate(8 * 1024);
+	private ArrayList<Record> mUnsyncedRecords = new ArrayList<Record>();
+	private long mNextSequence;
+	private long mLastAppliedSequence;
+	private long mFileSize;
+	private boolean mSyncScheduled = false;
+	private boolean mCompactScheduled = false;
+
+	// ### 构造函数 ###
+	public WriteJournal(File file) throws IOException {
+		mFile = file;
+		mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+
+		final ArrayList<Record> records = new ArrayList<Record>();
+		final long baseSequence;
+		boolean recovered = false;
+		try {
+			baseSequence = recover(records);
+			recovered = true;
+		} finally {
+			// 构造失败时调用方拿不到对象, 只能在这里关闭文件; 关闭的异常不能掩盖恢复失败的原因
+			if (recovered == false) try {
+				mChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		mRecoveredRecords = Collections.unmodifiableList(records);
+		mNextSequence = records.isEmpty() ? baseSequence : records.get(records.size() - 1).mSequence + 1;
+		mLastAppliedSequence = baseSequence - 1;
+	}
+
+	// ### 属性 ###
+	// 上次打开时日志中的完整记录, 按序号递增排列, 其中可能有已经写入数据库的.
+	public List<Record> getRecoveredRecords() {
+		return mRecoveredRecords;
+	}
+
+	// ### 方法 ###
+	// 重放完成后调用, 释放恢复出的记录及其负载.
+	public void clearRecoveredRecords() {
+		mRecoveredRecords = Collections.emptyList();
+	}
+	public Record append(int operation, byte[] payload) throws IOException {
+		if (payload.length > MAX_PAYLOAD_SIZE)
+			throw new IOException("journal payload too large: " + payload.length);
+
+		synchronized (mLock) {
+			final Record record = new Record(mNextSequence, operation, payload);
+			ensureBufferCapacity(RECORD_OVERHEAD + payload.length);
+
+			final int start = mBuffer.position();
+			mBuffer.putInt(payload.length);
+			mBuffer.putLong(record.mSequence);
+			mBuffer.putInt(operation);
+			mBuffer.put(payload);
+			final CRC32 crc = new CRC32();
+			crc.update(mBuffer.array(), start, mBuffer.position() - start);
+			mBuffer.putInt((int) crc.getValue());
+
+			++mNextSequence;
+			mUnsyncedRecords.add(record);
+			if (mSyncScheduled == false) {
+				mSyncScheduled = true;
+				mSyncer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						sync();
+					}
+				}, SYNC_DELAY, TimeUnit.MILLISECONDS);
+			}
+			return record;
+		}
+	}
+	// 序号不超过sequence的记录都已写入数据库. 日志中的记录全部写入且文件足够大时重建日志.
+	public void markApplied(long sequence) {
+		synchronized (mLock) {
+			mLastAppliedSequence = Math.max(mLastAppliedSequence, sequence);
+			if (mCompactScheduled || mLastAppliedSequence < mNextSequence - 1 || mFileSize + mBuffer.position() < COMPACT_SIZE)
+				return;
+
+			mCompactScheduled = true;
+		}
+
+		mSyncer.submit(new Runnable() {
+			@Override
+			public void run() {
+				compact();
+			}
+		});
+	}
+
+	// ### 实现函数 ###
+	private long recover(List<Record> records) throws IOException {
+		final long length = mChannel.size();
+		if (length < HEADER_SIZE) {
+			resetFile(1);
+			return 1;
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, Integer.MAX_VALUE));
+		mChannel.position(0);
+		while (buffer.hasRemaining() && mChannel.read(buffer) >= 0) {
+
+		}
+		buffer.flip();
+
+		final long baseSequence = buffer.getLong();
+		long expectedSequence = baseSequence;
+		final CRC32 crc = new CRC32();
+		while (buffer.remaining() >= RECORD_OVERHEAD) {
+			final int start = buffer.position();
+			final int payloadSize = buffer.getInt();
+			if (payloadSize < 0 || payloadSize > MAX_PAYLOAD_SIZE || buffer.remaining() < payloadSize + RECORD_OVERHEAD - 4) {
+				buffer.position(start);
+				break;
+			}
+
+			final long sequence = buffer.getLong();
+			final int operation = buffer.getInt();
+			final byte[] payload = new byte[payloadSize];
+			buffer.get(payload);
+			crc.reset();
+			crc.update(buffer.array(), start, buffer.position() - start);
+			if (buffer.getInt() != (int) crc.getValue() || sequence != expectedSequence) {
+				buffer.position(start);
+				break;
+			}
+
+			records.add(new Record(sequence, operation, payload));
+			++expectedSequence;
+		}
+
+		// 截掉写到一半的尾部, 之后追加的记录紧接在最后一条完整记录之后
+		mFileSize = buffer.position();
+		if (mFileSize < length) {
+			mChannel.truncate(mFileSize);
+			mChannel.force(false);
+		}
+		mChannel.position(mFileSize);
+		return baseSequence;
+	}
+	private void sync() {
+		final ArrayList<Record> records;
+		boolean succeed = true;
+		try {
+			synchronized (mLock) {
+				mSyncScheduled = false;
+				records = mUnsyncedRecords;
+				mUnsyncedRecords = new ArrayList<Record>();
+
+				mBuffer.flip();
+				try {
+					while (mBuffer.hasRemaining()) {
+						mFileSize += mChannel.write(mBuffer);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					succeed = false;
+				} finally {
+					mBuffer.clear();
+				}
+			}
+
+			// 同步磁盘期间不持有锁, 写操作可以继续追加到缓冲区
+			if (succeed) try {
+				mChannel.force(false);
+			} catch (IOException e) {
+				e.printStackTrace();
+				succeed = false;
+			}
+
+		} catch (Throwable e) {
+			e.printStackTrace();
+			return;
+		}
+
+		for (Record each : records) {
+			each.mAck.complete(succeed);
+		}
+	}
+	private void compact() {
+		synchronized (mLock) {
+			mCompactScheduled = false;
+			// 排队期间可能有新的记录追加进来
+			if (mLastAppliedSequence < mNextSequence - 1 || mBuffer.position() > 0)
+				return;
+
+			try {
+				resetFile(mNextSequence);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	// 先写好只有文件头的临时文件再替换日志, 任何时刻崩溃都能读到完整的旧日志或新日志.
+	private void resetFile(long baseSequence) throws IOException {
+		final File tmpFile = new File(mFile.getPath() + ".tmp");
+		final FileChannel tmpChannel = new RandomAccessFile(tmpFile, "rw").getChannel();
+		try {
+			tmpChannel.truncate(0);
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putLong(baseSequence);
+			header.flip();
+			while (header.hasRemaining()) {
+				tmpChannel.write(header);
+			}
+			tmpChannel.force(true);
+		} catch (IOException e) {
+			tmpChannel.close();
+			tmpFile.delete();
+			throw e;
+		}
+
+		if (tmpFile.renameTo(mFile) == false) {
+			tmpChannel.close();
+			tmpFile.delete();
+			throw new IOException("failed to replace journal: " + mFile);
+		}
+
+		mChannel.close();
+		mChannel = tmpChannel;
+		mChannel.position(HEADER_SIZE);
+		mFileSize = HEADER_SIZE;
+	}
+	private void ensureBufferCapacity(int size) {
+		if (mBuffer.remaining() >= size)
+			return;
+
+		final ByteBuffer buffer = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + size));
+		mBuffer.flip();
+		buffer.put(mBuffer);
+		mBuffer = buffer;
+	}
+
+	// ### 内嵌类 ###
+	public static class Record {
+		public final long mSequence;
+		public final int mOperation;
+		public final byte[] mPayload;
+		private final Ack mAck = new Ack();
+
+		private Record(long sequence, int operation, byte[] payload) {
+			mSequence = sequence;
+			mOperation = operation;
+			mPayload = payload;
+		}
+
+		// 记录同步到磁盘后完成, 结果为false表示同步失败, 这条记录不能保证在崩溃后恢复.
+		public Future<Boolean> getAck() {
+			return mAck;
+		}
+	}
+	private static class Ack extends FutureTask<Boolean> {
+		private static final Runnable NOP = new Runnable() {
+			@Override
+			public void run() {
+
+			}
+		};
+
+		public Ack() {
+			super(NOP, false);
+		}
+
+		public void complete(boolean result) {
+			set(result);
+		}
+	}
+}
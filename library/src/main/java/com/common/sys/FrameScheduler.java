@@ -0,0 +1,192 @@
+package com.common.sys;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按帧执行主线程任务. 每帧只在时间预算内执行排队的任务, 超出预算后剩下的任务顺延到下一帧, 每帧至少执行一个任务.
+ * 相同key的任务在执行前只保留最后提交的一个, 并排到队尾.
+ *
+ * API 16及以上由Choreographer驱动, 在绘制之前执行; 更早的系统没有Choreographer, 退化为每次消息循环执行一批.
+ */
+final class FrameScheduler {
+    private static final long FRAME_INTERVAL_NANOS = 1000000000L / 60;
+    private static final long DEFAULT_BUDGET_NANOS = 8 * 1000000L;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    private final LinkedHashMap<Object, Runnable> mTasks = new LinkedHashMap<Object, Runnable>();
+    private final Runnable mRequestFrame = new Runnable() {
+        @Override
+        public void run() {
+            postFrameCallback();
+        }
+    };
+    private final Runnable mLegacyFrame = new Runnable() {
+        @Override
+        public void run() {
+            doFrame(System.nanoTime());
+        }
+    };
+    private Object mFrameCallback = null;
+    private long mBudgetNanos = DEFAULT_BUDGET_NANOS;
+    private boolean mFrameRequested = false;
+    private long mLastFrameTimeNanos = 0;
+    private long mFrameCount = 0;
+    private long mDroppedFrameCount = 0;
+    private long mDeferredTaskCount = 0;
+    private long mCoalescedTaskCount = 0;
+
+    // ### 构造函数 ###
+    public FrameScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    // ### 属性 ###
+    public void setBudget(long budgetMillis) {
+        synchronized (mLock) {
+            mBudgetNanos = Math.max(0, budgetMillis) * 1000000L;
+        }
+    }
+    // 有任务排队时执行过的帧数
+    public long getFrameCount() {
+        synchronized (mLock) {
+            return mFrameCount;
+        }
+    }
+    // 有任务排队时相邻两帧之间跳过的帧数
+    public long getDroppedFrameCount() {
+        synchronized (mLock) {
+            return mDroppedFrameCount;
+        }
+    }
+    // 超出预算顺延到下一帧的次数, 同一个任务顺延多帧时重复计数
+    public long getDeferredTaskCount() {
+        synchronized (mLock) {
+            return mDeferredTaskCount;
+        }
+    }
+    public long getCoalescedTaskCount() {
+        synchronized (mLock) {
+            return mCoalescedTaskCount;
+        }
+    }
+
+    // ### 方法 ###
+    public void post(Object key, Runnable runnable) {
+        synchronized (mLock) {
+            if (key == null) {
+                key = new Object();
+            } else if (mTasks.remove(key) != null) {
+                ++mCoalescedTaskCount;
+            }
+            mTasks.put(key, runnable);
+
+            if (mFrameRequested)
+                return;
+
+            mFrameRequested = true;
+        }
+
+        if (MainThread.is()) {
+            postFrameCallback();
+        } else {
+            mHandler.post(mRequestFrame);
+        }
+    }
+    public void remove(Object key) {
+        synchronized (mLock) {
+            mTasks.remove(key);
+        }
+    }
+
+    // ### 实现函数 ###
+    private void postFrameCallback() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (mFrameCallback == null) {
+                mFrameCallback = new ChoreographerCallback(this);
+            }
+            ((ChoreographerCallback) mFrameCallback).post();
+        } else {
+            mHandler.post(mLegacyFrame);
+        }
+    }
+    private void doFrame(long frameTimeNanos) {
+        final long budgetNanos;
+        synchronized (mLock) {
+            mFrameRequested = false;
+            ++mFrameCount;
+            if (mLastFrameTimeNanos > 0) {
+                final long skippedFrames = (frameTimeNanos - mLastFrameTimeNanos) / FRAME_INTERVAL_NANOS - 1;
+                if (skippedFrames > 0) {
+                    mDroppedFrameCount += skippedFrames;
+                }
+            }
+            mLastFrameTimeNanos = frameTimeNanos;
+            budgetNanos = mBudgetNanos;
+        }
+
+        final long deadline = System.nanoTime() + budgetNanos;
+        while (true) {
+            final Runnable task;
+            synchronized (mLock) {
+                final Iterator<Map.Entry<Object, Runnable>> iterator = mTasks.entrySet().iterator();
+                if (iterator.hasNext() == false)
+                    break;
+
+                task = iterator.next().getValue();
+                iterator.remove();
+            }
+
+            try {
+                task.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+
+            if (System.nanoTime() >= deadline)
+                break;
+        }
+
+        synchronized (mLock) {
+            if (mTasks.isEmpty()) {
+                // 队列空闲期间的帧间隔不计入掉帧
+                mLastFrameTimeNanos = 0;
+                return;
+            }
+
+            mDeferredTaskCount += mTasks.size();
+            if (mFrameRequested)
+                return;
+
+            mFrameRequested = true;
+        }
+        postFrameCallback();
+    }
+
+    // ### 内嵌类 ###
+    // 单独放在内嵌类中, 低版本系统上不会加载Choreographer.
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerCallback implements Choreographer.FrameCallback {
+        private final FrameScheduler mScheduler;
+
+        public ChoreographerCallback(FrameScheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        // 只能在主线程上调用
+        public void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mScheduler.doFrame(frameTimeNanos);
+        }
+    }
+}
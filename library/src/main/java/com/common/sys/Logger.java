@@ -130,7 +130,7 @@ public class Logger implements ThreadSafe {
                 public void run() {
                     doDump(entry, file);
                 }
-            }, TAG);
+            }, TAG, PooledThread.Priority.BACKGROUND);
         }
     }
     public void dumpNow(final LogEntry entry, final File file) {
@@ -142,7 +142,7 @@ public class Logger implements ThreadSafe {
                 public void run() {
                     doDump(entry, file);
                 }
-            }, TAG);
+            }, TAG, PooledThread.Priority.BACKGROUND);
         }
 
         try {
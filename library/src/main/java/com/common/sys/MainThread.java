@@ -10,6 +10,7 @@ import java.util.concurrent.Semaphore;
  */
 public abstract class MainThread {
     public static final Handler mHandler = new Handler(Looper.getMainLooper());
+    private static final FrameScheduler mFrameScheduler = new FrameScheduler(mHandler);
 
     public static final boolean is() {
         return Thread.currentThread() == get();
@@ -74,4 +75,35 @@ public abstract class MainThread {
             mHandler.removeCallbacks(runnable);
         }
     }
+
+    /**
+     * 在之后的帧中执行, 每帧只执行预算时间内的任务, 适合大量非紧急的界面更新.
+     */
+    public static final void runInFrame(Runnable runnable) {
+        runInFrame(null, runnable);
+    }
+    // key不为null时, 同一个key的任务在执行前只保留最后提交的一个.
+    public static final void runInFrame(Object key, Runnable runnable) {
+        if (runnable == null)
+            return;
+
+        mFrameScheduler.post(key, runnable);
+    }
+    public static final void cancelInFrame(Object key) {
+        if (key != null) {
+            mFrameScheduler.remove(key);
+        }
+    }
+    public static final void setFrameBudget(long budgetMillis) {
+        mFrameScheduler.setBudget(budgetMillis);
+    }
+    public static final long getDroppedFrameCount() {
+        return mFrameScheduler.getDroppedFrameCount();
+    }
+    public static final long getDeferredTaskCount() {
+        return mFrameScheduler.getDeferredTaskCount();
+    }
+    public static final long getCoalescedTaskCount() {
+        return mFrameScheduler.getCoalescedTaskCount();
+    }
 }
@@ -0,0 +1,242 @@
+package com.common.sys;
+
+import java.util.HashSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把[from, to)按grain切分成若干段, 由最多parallelism个线程并行计算, 再按段的顺序依次合并结果.
+ * 通过PooledThread.parallel()创建.
+ *
+ * 各线程从同一个计数器领取下一段, 先做完的线程自动多做, 效果上等同于工作窃取. 调用get()的线程也会领取剩余的段,
+ * 所以在线程池已满或在池中线程上等待时也不会死锁; 主线程调用get()时只等待, 不参与计算.
+ * 任意一段抛出异常或任务被取消后, 尚未开始的段不再计算. 取消后get()立即抛出CancellationException,
+ * 不等待正在计算的段; cancel(true)还会中断正在计算的线程.
+ */
+public final class ParallelTask<T> implements Future<T> {
+	private final long mFrom;
+	private final long mTo;
+	private final long mGrain;
+	private final int mChunkCount;
+	private final RangeTask<T> mTask;
+	private final Merger<T> mMerger;
+	private final Object[] mChunkResults;
+	private final AtomicInteger mNextChunk = new AtomicInteger(0);
+	private final AtomicInteger mFinishedChunks = new AtomicInteger(0);
+	private final AtomicInteger mWorkerCount = new AtomicInteger(0);
+	private final AtomicLong mTotalChunkTime = new AtomicLong(0);
+	private final AtomicLong mMaxChunkTime = new AtomicLong(0);
+	private final CountDownLatch mDone = new CountDownLatch(1);
+	// 取消和最后一段完成可能同时发生, 只有先到的一方结束任务
+	private final AtomicBoolean mFinished = new AtomicBoolean(false);
+	// 正在计算某一段的线程, cancel(true)时中断它们
+	private final HashSet<Thread> mComputingThreads = new HashSet<Thread>();
+	private boolean mInterrupted = false;
+	private final long mStartTime = System.nanoTime();
+	private volatile long mFinishTime = 0;
+	private volatile boolean mCancelled = false;
+	private volatile Throwable mFailure = null;
+	private T mResult = null;
+
+	// ### 接口 ###
+	public interface RangeTask<T> {
+		// 计算[from, to)这一段, 耗时较长的计算可以定期检查task.isCancelled()提前结束.
+		T compute(ParallelTask<T> task, long from, long to);
+	}
+	public interface Merger<T> {
+		// left在前, right在后, 两者都可能是某一段返回的null.
+		T merge(T left, T right);
+	}
+
+	// ### 构造函数 ###
+	ParallelTask(long from, long to, long grain, RangeTask<T> task, Merger<T> merger) {
+		assert grain > 0;
+
+		mFrom = from;
+		mTo = Math.max(from, to);
+		mGrain = Math.max(1, grain);
+		final long chunkCount = (mTo - mFrom + mGrain - 1) / mGrain;
+		if (chunkCount > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("grain too small: " + grain);
+
+		mChunkCount = (int) chunkCount;
+		mTask = task;
+		mMerger = merger;
+		mChunkResults = new Object[mChunkCount];
+		if (mChunkCount == 0) {
+			finish();
+		}
+	}
+
+	// ### 属性 ###
+	public int getChunkCount() {
+		return mChunkCount;
+	}
+	// 实际参与计算的线程数, 包括调用get()的线程
+	public int getWorkerCount() {
+		return mWorkerCount.get();
+	}
+	// 从创建到合并完成的毫秒数, 尚未完成时返回到现在为止的时间
+	public long getWallTime() {
+		final long finishTime = mFinishTime;
+		return TimeUnit.NANOSECONDS.toMillis((finishTime != 0 ? finishTime : System.nanoTime()) - mStartTime);
+	}
+	// 各段计算耗时之和, 与getWallTime()的比值就是实际的并行度
+	public long getTotalChunkTime() {
+		return TimeUnit.NANOSECONDS.toMillis(mTotalChunkTime.get());
+	}
+	public long getMaxChunkTime() {
+		return TimeUnit.NANOSECONDS.toMillis(mMaxChunkTime.get());
+	}
+
+	// ### Future接口实现 ###
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (mFinished.compareAndSet(false, true) == false)
+			return false;
+
+		// 正在计算的段不等待, 之后完成的结果被丢弃
+		mCancelled = true;
+		if (mayInterruptIfRunning) {
+			synchronized (mComputingThreads) {
+				mInterrupted = true;
+				for (Thread each : mComputingThreads) {
+					each.interrupt();
+				}
+			}
+		}
+		complete();
+		return true;
+	}
+	@Override
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+	@Override
+	public boolean isDone() {
+		return mDone.getCount() == 0;
+	}
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		if (MainThread.is() == false) {
+			work(0);
+		}
+		mDone.await();
+		return report();
+	}
+	// 参与计算时只在超时之前领取新的段, 已经领取的段会算完, 所以实际等待可能超过timeout.
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if (MainThread.is() == false) {
+			work(deadline);
+		}
+		if (mDone.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) == false)
+			throw new TimeoutException();
+
+		return report();
+	}
+
+	// ### 实现函数 ###
+	void start(PriorityExecutor executor, int parallelism, PooledThread.Priority priority) {
+		final int workerCount = Math.min(Math.max(1, parallelism), mChunkCount);
+		for (int n = 0; n < workerCount; ++n) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					work(0);
+				}
+			}, priority);
+		}
+	}
+	// deadline不为0时, 到时间后不再领取新的段
+	private void work(long deadline) {
+		boolean counted = false;
+		while (true) {
+			if (deadline != 0 && System.nanoTime() - deadline >= 0)
+				break;
+
+			final int chunk = mNextChunk.getAndIncrement();
+			if (chunk >= mChunkCount)
+				break;
+
+			if (counted == false) {
+				counted = true;
+				mWorkerCount.incrementAndGet();
+			}
+
+			if (mCancelled == false && mFailure == null) {
+				final long from = mFrom + chunk * mGrain;
+				final long to = Math.min(mTo, from + mGrain);
+				final long startTime = System.nanoTime();
+				final Thread thread = Thread.currentThread();
+				synchronized (mComputingThreads) {
+					mComputingThreads.add(thread);
+				}
+				try {
+					mChunkResults[chunk] = mTask.compute(this, from, to);
+				} catch (Throwable e) {
+					if (mFailure == null && mCancelled == false) {
+						mFailure = e;
+					}
+				} finally {
+					synchronized (mComputingThreads) {
+						mComputingThreads.remove(thread);
+						// 移出之后不会再被中断, 清除取消时的中断, 不影响线程池中的下一个任务
+						if (mInterrupted) {
+							Thread.interrupted();
+						}
+					}
+				}
+
+				final long chunkTime = System.nanoTime() - startTime;
+				mTotalChunkTime.addAndGet(chunkTime);
+				while (true) {
+					final long maxChunkTime = mMaxChunkTime.get();
+					if (chunkTime <= maxChunkTime || mMaxChunkTime.compareAndSet(maxChunkTime, chunkTime))
+						break;
+				}
+			}
+
+			// 每一段只会被领取一次, 计数到mChunkCount的线程负责合并
+			if (mFinishedChunks.incrementAndGet() == mChunkCount) {
+				finish();
+			}
+		}
+	}
+	@SuppressWarnings("unchecked")
+	private void finish() {
+		if (mFinished.compareAndSet(false, true) == false)
+			return;
+
+		if (mFailure == null) try {
+			T result = mChunkCount > 0 ? (T) mChunkResults[0] : null;
+			for (int n = 1; n < mChunkCount; ++n) {
+				result = mMerger.merge(result, (T) mChunkResults[n]);
+			}
+			mResult = result;
+		} catch (Throwable e) {
+			mFailure = e;
+		}
+		complete();
+	}
+	private void complete() {
+		mFinishTime = System.nanoTime();
+		mDone.countDown();
+	}
+	private T report() throws ExecutionException {
+		if (mCancelled)
+			throw new CancellationException();
+		if (mFailure != null)
+			throw new ExecutionException(mFailure);
+
+		return mResult;
+	}
+}
@@ -1,36 +1,68 @@
 package com.common.sys;
 
-import java.util.LinkedList;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Delayed;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class PooledThread {
-	private static final ScheduledExecutorService sSingleThreadedExecutor = Executors.newSingleThreadScheduledExecutor();
-	private static final ExecutorService sMultiThreadedExecutor = Executors.newCachedThreadPool();
-	private static final LinkedList<QueuedTask<?>> sTaskQueue = new LinkedList<QueuedTask<?>>();
+	private static final TimerWheel sTimer = new TimerWheel("pooled-timer");
+	private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+	private static final int LANE_CAPACITY = 256;
+	// 默认给界面线程留出一个核
+	private static final int DEFAULT_PARALLELISM = Math.max(1, CPU_COUNT - 1);
+	private static final PriorityExecutor sMultiThreadedExecutor = new PriorityExecutor("pooled-thread", CPU_COUNT + 1, CPU_COUNT * 2 + 1, LANE_CAPACITY);
+	private static final ConcurrentHashMap<String, TaskQueue> sTaskQueues = new ConcurrentHashMap<String, TaskQueue>();
 	
+	// ### 枚举 ###
+	public static enum Priority {
+		// 界面正在等待结果的任务
+		UI_CRITICAL,
+		NORMAL,
+		// 日志, 预取, 清理等可以推迟的任务
+		BACKGROUND,
+	}
+
+	// ### 属性 ###
+	public static int getThreadCount() {
+		return sMultiThreadedExecutor.getThreadCount();
+	}
+	public static int getQueueDepth(Priority priority) {
+		return sMultiThreadedExecutor.getQueueDepth(priority);
+	}
+	public static long getAverageWaitTime(Priority priority) {
+		return sMultiThreadedExecutor.getAverageWaitTime(priority);
+	}
+	public static long getMaxWaitTime(Priority priority) {
+		return sMultiThreadedExecutor.getMaxWaitTime(priority);
+	}
+	public static long getRejectedCount(Priority priority) {
+		return sMultiThreadedExecutor.getRejectedCount(priority);
+	}
+
 	// ### 方法 ###
+	/**
+	 * 调整线程池大小. 默认核心线程数为CPU数+1, 最大线程数为CPU数*2+1, 每个优先级最多排队LANE_CAPACITY个任务,
+	 * 排满后由提交任务的线程直接执行.
+	 */
+	public static void setPoolSize(int coreSize, int maxSize, int laneCapacity) {
+		sMultiThreadedExecutor.setPoolSize(coreSize, maxSize, laneCapacity);
+	}
 	public static Future<?> runInQueue(Runnable runnable) {
 		return runInQueue(runnable, "");
 	}
 	public static Future<?> runInQueue(Runnable runnable, final String queueName) {
-		final QueuedTask<Void> task = new QueuedTask<Void>(queueName, runnable);
-		
-		sSingleThreadedExecutor.submit(new Runnable() {
-			@Override
-			public void run() {
-				sTaskQueue.add(task);
-				runNextQueuedTask(queueName);
-			}
-		});
-	
+		return runInQueue(runnable, queueName, Priority.NORMAL);
+	}
+	public static Future<?> runInQueue(Runnable runnable, final String queueName, Priority priority) {
+		final QueuedTask<Void> task = new QueuedTask<Void>(queueName, runnable, priority);
+		enqueue(task);
 		return task;
 	}
 	public static ScheduledFuture<?> runInQueueLater(Runnable runnable, final long delayMills) {
@@ -38,30 +70,20 @@ public abstract class PooledThread {
 	}
 	public static ScheduledFuture<?> runInQueueLater(Runnable runnable, final String queueName, final long delayMillis) {
 		final ScheduledQueuedTask<Void> task = new ScheduledQueuedTask<Void>(queueName, runnable, System.currentTimeMillis() + delayMillis);
-		
-		sSingleThreadedExecutor.schedule(new Runnable() {
-			@Override
-			public void run() {
-				sTaskQueue.add(task);
-				runNextQueuedTask(queueName);
-			}
-		}, delayMillis, TimeUnit.MICROSECONDS);
-	
+		task.schedule(delayMillis);
 		return task;
 	}
 	public static Future<?> run(Runnable runnable) {
-		return sMultiThreadedExecutor.submit(runnable);
+		return run(runnable, Priority.NORMAL);
+	}
+	public static Future<?> run(Runnable runnable, Priority priority) {
+		final FutureTask<Void> task = new FutureTask<Void>(runnable, null);
+		sMultiThreadedExecutor.execute(task, priority);
+		return task;
 	}
 	public static ScheduledFuture<?> runLater(Runnable runnable, long delayMillis) {
 		final ScheduledUnqueuedTask<Void> task = new ScheduledUnqueuedTask<Void>(runnable, System.currentTimeMillis() + delayMillis);
-		
-		sSingleThreadedExecutor.schedule(new Runnable() {
-			@Override
-			public void run() {
-				sMultiThreadedExecutor.submit(task);
-			}
-		}, delayMillis, TimeUnit.MICROSECONDS);
-	
+		task.schedule(delayMillis);
 		return task;
 	}
 	
@@ -69,16 +91,11 @@ public abstract class PooledThread {
 		return callInQueue(callable, "");
 	}
 	public static <T> Future<T> callInQueue(Callable<T> callable, final String queueName) {
-		final QueuedTask<T> task = new QueuedTask<T>(queueName, callable);
-		
-		sSingleThreadedExecutor.submit(new Runnable() {
-			@Override
-			public void run() {
-				sTaskQueue.add(task);
-				runNextQueuedTask(queueName);
-			}
-		});
-	
+		return callInQueue(callable, queueName, Priority.NORMAL);
+	}
+	public static <T> Future<T> callInQueue(Callable<T> callable, final String queueName, Priority priority) {
+		final QueuedTask<T> task = new QueuedTask<T>(queueName, callable, priority);
+		enqueue(task);
 		return task;
 	}
 	public static <T> ScheduledFuture<T> callInQueueLater(Callable<T> callable, final long delayMills) {
@@ -86,95 +103,183 @@ public abstract class PooledThread {
 	}
 	public static <T> ScheduledFuture<T> callInQueueLater(Callable<T> callable, final String queueName, final long delayMillis) {
 		final ScheduledQueuedTask<T> task = new ScheduledQueuedTask<T>(queueName, callable, System.currentTimeMillis() + delayMillis);
-		
-		sSingleThreadedExecutor.schedule(new Runnable() {
-			@Override
-			public void run() {
-				sTaskQueue.add(task);
-				runNextQueuedTask(queueName);
-			}
-		}, delayMillis, TimeUnit.MICROSECONDS);
-	
+		task.schedule(delayMillis);
 		return task;
 	}
 	public static <T> Future<T> call(Callable<T> callable) {
-		return sMultiThreadedExecutor.submit(callable);
+		return call(callable, Priority.NORMAL);
+	}
+	public static <T> Future<T> call(Callable<T> callable, Priority priority) {
+		final FutureTask<T> task = new FutureTask<T>(callable);
+		sMultiThreadedExecutor.execute(task, priority);
+		return task;
 	}
 	public static <T> ScheduledFuture<T> callLater(Callable<T> callable, long delayMillis) {
 		final ScheduledUnqueuedTask<T> task = new ScheduledUnqueuedTask<T>(callable, System.currentTimeMillis() + delayMillis);
-		
-		sSingleThreadedExecutor.schedule(new Runnable() {
-			@Override
-			public void run() {
-				sMultiThreadedExecutor.submit(task);
-			}
-		}, delayMillis, TimeUnit.MICROSECONDS);
-	
+		task.schedule(delayMillis);
 		return task;
 	}
 	
+	/**
+	 * 把[from, to)按grain切分后并行计算, 按顺序合并各段的结果. 计算在BACKGROUND优先级上执行,
+	 * 在主线程以外调用返回的ParallelTask.get()的线程也会参与计算.
+	 */
+	public static <T> ParallelTask<T> parallel(long from, long to, long grain, ParallelTask.RangeTask<T> task, ParallelTask.Merger<T> merger) {
+		return parallel(from, to, grain, DEFAULT_PARALLELISM, task, merger);
+	}
+	public static <T> ParallelTask<T> parallel(long from, long to, long grain, int maxParallelism, ParallelTask.RangeTask<T> task, ParallelTask.Merger<T> merger) {
+		final ParallelTask<T> parallelTask = new ParallelTask<T>(from, to, grain, task, merger);
+		parallelTask.start(sMultiThreadedExecutor, Math.min(maxParallelism, CPU_COUNT), Priority.BACKGROUND);
+		return parallelTask;
+	}
+	
 	// ### 实现函数 ###
-	private static void runNextQueuedTask(String queueName) {
-		for (QueuedTask<?> each : sTaskQueue) {
-			if (each.queueName.equals(queueName)) {
-				// 保证相同队列中的任务按顺序依次执行
-				if (each.running == false) {
-					each.running = true;
-					sMultiThreadedExecutor.submit(each);
+	static boolean isTimerThread() {
+		return sTimer.isTimerThread();
+	}
+	// 当前存在的同名队列数, 空闲的队列会被移除
+	static int getTaskQueueCount() {
+		return sTaskQueues.size();
+	}
+	private static void enqueue(QueuedTask<?> task) {
+		while (true) {
+			TaskQueue queue = sTaskQueues.get(task.queueName);
+			if (queue == null) {
+				final TaskQueue newQueue = new TaskQueue(task.queueName);
+				queue = sTaskQueues.putIfAbsent(task.queueName, newQueue);
+				if (queue == null) {
+					queue = newQueue;
 				}
-				break;
 			}
+			if (queue.add(task))
+				return;
+
+			// 队列已经空闲退役, 它的任务都已执行完, 换一个新队列不会打乱顺序
+			sTaskQueues.remove(task.queueName, queue);
 		}
 	}
 	
 	// ### 实现类 ###
+	/**
+	 * 同名队列中的任务按加入顺序依次执行. 同一时刻最多只有一个线程在执行队列, 这个线程执行完一个任务后
+	 * 直接取出下一个继续执行, 连续执行MAX_DRAIN_COUNT个任务后重新提交到线程池, 让出线程给其它任务.
+	 * 队列按队首任务的优先级提交到线程池, 不受线程池队列容量的限制, 排空队列不会落到提交任务的线程上执行.
+	 *
+	 * 任务全部执行完后队列退役并从sTaskQueues中移除, 以临时名字(例如每个游标一个)创建的队列不会一直留在表中.
+	 */
+	private static class TaskQueue implements Runnable {
+		private static final int MAX_DRAIN_COUNT = 64;
+		private static final int RETIRED = -1;
+		private final String mName;
+		private final ConcurrentLinkedQueue<QueuedTask<?>> mTasks = new ConcurrentLinkedQueue<QueuedTask<?>>();
+		private final AtomicBoolean mRunning = new AtomicBoolean(false);
+		// 已加入但还没有执行完的任务数, 为RETIRED时不再接受任务
+		private final AtomicInteger mPendingCount = new AtomicInteger(0);
+		
+		public TaskQueue(String name) {
+			mName = name;
+		}
+		
+		// 返回false表示队列已经退役, 调用方需要换一个新队列
+		public boolean add(QueuedTask<?> task) {
+			while (true) {
+				final int pendingCount = mPendingCount.get();
+				if (pendingCount == RETIRED)
+					return false;
+				if (mPendingCount.compareAndSet(pendingCount, pendingCount + 1))
+					break;
+			}
+			
+			mTasks.add(task);
+			scheduleIfNeeded();
+			return true;
+		}
+		
+		@Override
+		public void run() {
+			for (int n = 0; n < MAX_DRAIN_COUNT; ++n) {
+				// 只有持有mRunning的线程会取出任务
+				final QueuedTask<?> task = mTasks.poll();
+				if (task == null)
+					break;
+				
+				try {
+					task.run();
+				} finally {
+					mPendingCount.decrementAndGet();
+				}
+			}
+			
+			// 计数为0说明队列已空并且没有正在加入的任务. 退役后mRunning不再释放, 队列不会再被执行.
+			if (mPendingCount.compareAndSet(0, RETIRED)) {
+				sTaskQueues.remove(mName, this);
+				return;
+			}
+			
+			// 先释放再检查, 与add()中先加入再检查配合, 不会漏掉释放前刚加入的任务.
+			mRunning.set(false);
+			scheduleIfNeeded();
+		}
+		
+		private void scheduleIfNeeded() {
+			if (mTasks.isEmpty() == false && mRunning.compareAndSet(false, true)) {
+				final QueuedTask<?> head = mTasks.peek();
+				sMultiThreadedExecutor.execute(this, head != null ? head.priority : Priority.NORMAL, false);
+			}
+		}
+	}
 	private static class QueuedTask<T> extends FutureTask<T> {
 		public final String queueName;
-		private boolean running = false;
+		public final Priority priority;
 		
-		public QueuedTask(String queueName, Runnable runnable) {
+		public QueuedTask(String queueName, Runnable runnable, Priority priority) {
 			super(runnable, null);
 			
 			this.queueName = queueName;
+			this.priority = priority;
 		}
-		public QueuedTask(String queueName, Callable<T> callable) {
+		public QueuedTask(String queueName, Callable<T> callable, Priority priority) {
 			super(callable);
 			
 			this.queueName = queueName;
-		}
-
-		@Override
-		public void run() {
-			try {
-				super.run();
-				
-			} finally {
-				sSingleThreadedExecutor.submit(new Runnable() {
-					@Override
-					public void run() {
-						sTaskQueue.remove(QueuedTask.this);
-						running = false;
-						
-						runNextQueuedTask(queueName);
-					}
-				});
-			}
+			this.priority = priority;
 		}
 	}
 	private static class ScheduledQueuedTask<T> extends QueuedTask<T> implements ScheduledFuture<T> {
 		private final long mScheduledTime;
+		private volatile TimerWheel.Timeout mTimeout = null;
 		
 		public ScheduledQueuedTask(String queueName, Runnable runnable, long scheduledTime) {
-			super(queueName, runnable);
+			super(queueName, runnable, Priority.NORMAL);
 			
 			mScheduledTime = scheduledTime;
 		}
 		public ScheduledQueuedTask(String queueName, Callable<T> callable, long scheduledTime) {
-			super(queueName, callable);
+			super(queueName, callable, Priority.NORMAL);
 			
 			mScheduledTime = scheduledTime;
 		}
 		
+		public void schedule(long delayMillis) {
+			mTimeout = sTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (isDone() == false) {
+						enqueue(ScheduledQueuedTask.this);
+					}
+				}
+			}, delayMillis);
+		}
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			final boolean cancelled = super.cancel(mayInterruptIfRunning);
+			// 尚未到期的任务直接从时间轮中移除
+			final TimerWheel.Timeout timeout = mTimeout;
+			if (cancelled && timeout != null) {
+				sTimer.cancel(timeout);
+			}
+			return cancelled;
+		}
 		@Override
 		public long getDelay(TimeUnit unit) {
 			final long delay = Math.max(0, mScheduledTime - System.currentTimeMillis());
@@ -188,6 +293,7 @@ public abstract class PooledThread {
 	}
 	private static class ScheduledUnqueuedTask<T> extends FutureTask<T> implements ScheduledFuture<T> {
 		private final long mScheduledTime;
+		private volatile TimerWheel.Timeout mTimeout = null;
 		
 		public ScheduledUnqueuedTask(Runnable runnable, long scheduledTime) {
 			super(runnable, null);
@@ -200,6 +306,25 @@ public abstract class PooledThread {
 			mScheduledTime = scheduledTime;
 		}
 		
+		public void schedule(long delayMillis) {
+			mTimeout = sTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (isDone() == false) {
+						sMultiThreadedExecutor.execute(ScheduledUnqueuedTask.this);
+					}
+				}
+			}, delayMillis);
+		}
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			final boolean cancelled = super.cancel(mayInterruptIfRunning);
+			final TimerWheel.Timeout timeout = mTimeout;
+			if (cancelled && timeout != null) {
+				sTimer.cancel(timeout);
+			}
+			return cancelled;
+		}
 		@Override
 		public long getDelay(TimeUnit unit) {
 			final long delay = Math.max(0, mScheduledTime - System.currentTimeMillis());
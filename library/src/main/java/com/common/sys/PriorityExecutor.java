@@ -0,0 +1,270 @@
+package com.common.sys;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PooledThread使用的有界线程池. 任务按优先级放入三条队列, 空闲线程总是先取优先级高的队列;
+ * 执行任务前把线程的调度优先级调整到与队列对应, 后台任务不会和界面线程抢占CPU.
+ *
+ * 线程数在mCoreSize和mMaxSize之间, 超出mCoreSize的线程空闲KEEP_ALIVE后退出.
+ * 某条队列已满时由提交任务的线程直接执行, 以此减缓提交速度; 主线程和定时器线程提交的任务不受容量限制, 避免阻塞这两个线程.
+ * 提交时callerRunsIfFull为false的任务(例如排空同名队列)也不受容量限制.
+ */
+final class PriorityExecutor extends AbstractExecutorService {
+	private static final long KEEP_ALIVE = 30 * 1000;
+	private final String mName;
+	private final Object mLock = new Object();
+	private final Lane[] mLanes;
+	private int mCoreSize;
+	private int mMaxSize;
+	private int mLaneCapacity;
+	private int mThreadCount = 0;
+	private int mIdleCount = 0;
+	private int mThreadSerial = 0;
+	private boolean mShutdown = false;
+
+	// ### 构造函数 ###
+	public PriorityExecutor(String name, int coreSize, int maxSize, int laneCapacity) {
+		mName = name;
+		mLanes = new Lane[] {
+				new Lane(Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_MORE_FAVORABLE),
+				new Lane(Process.THREAD_PRIORITY_DEFAULT),
+				new Lane(Process.THREAD_PRIORITY_BACKGROUND),
+		};
+		setPoolSize(coreSize, maxSize, laneCapacity);
+	}
+
+	// ### 属性 ###
+	public int getThreadCount() {
+		synchronized (mLock) {
+			return mThreadCount;
+		}
+	}
+	public int getQueueDepth(PooledThread.Priority priority) {
+		synchronized (mLock) {
+			return mLanes[priority.ordinal()].mTasks.size();
+		}
+	}
+	// 任务从提交到开始执行的平均等待时间(毫秒)
+	public long getAverageWaitTime(PooledThread.Priority priority) {
+		synchronized (mLock) {
+			final Lane lane = mLanes[priority.ordinal()];
+			return lane.mStartedCount > 0 ? lane.mTotalWaitTime / lane.mStartedCount : 0;
+		}
+	}
+	public long getMaxWaitTime(PooledThread.Priority priority) {
+		synchronized (mLock) {
+			return mLanes[priority.ordinal()].mMaxWaitTime;
+		}
+	}
+	// 因队列已满而由提交线程直接执行的任务数
+	public long getRejectedCount(PooledThread.Priority priority) {
+		synchronized (mLock) {
+			return mLanes[priority.ordinal()].mRejectedCount;
+		}
+	}
+
+	// ### 方法 ###
+	public void setPoolSize(int coreSize, int maxSize, int laneCapacity) {
+		synchronized (mLock) {
+			mCoreSize = Math.max(1, coreSize);
+			mMaxSize = Math.max(mCoreSize, maxSize);
+			mLaneCapacity = Math.max(1, laneCapacity);
+			// 让多余的空闲线程重新检查是否应该退出
+			mLock.notifyAll();
+		}
+	}
+	public void execute(Runnable command, PooledThread.Priority priority) {
+		execute(command, priority, true);
+	}
+	// callerRunsIfFull为false时队列已满也照样排队, 用于不能在提交线程上执行的任务.
+	public void execute(Runnable command, PooledThread.Priority priority, boolean callerRunsIfFull) {
+		final Lane lane = mLanes[priority.ordinal()];
+		synchronized (mLock) {
+			if (mShutdown)
+				throw new RejectedExecutionException(mName + " has been shut down");
+
+			if (lane.mTasks.size() < mLaneCapacity || callerRunsIfFull == false || MainThread.is() || PooledThread.isTimerThread()) {
+				lane.mTasks.add(new PendingTask(command, SystemClock.uptimeMillis()));
+				if (mIdleCount > 0) {
+					mLock.notify();
+				}
+				// 被唤醒的线程重新拿到锁之前仍计入mIdleCount, 连续提交时不能只看它, 否则后面的唤醒会落空.
+				// 每个空闲线程最多取走一个排队的任务, 排队的任务比空闲线程多时就要启动新线程.
+				if (queuedTaskCount() > mIdleCount && mThreadCount < mMaxSize) {
+					startWorker();
+				}
+				return;
+			}
+
+			++lane.mRejectedCount;
+		}
+
+		command.run();
+	}
+
+	// ### ExecutorService接口实现 ###
+	@Override
+	public void execute(Runnable command) {
+		execute(command, PooledThread.Priority.NORMAL);
+	}
+	@Override
+	public void shutdown() {
+		synchronized (mLock) {
+			mShutdown = true;
+			mLock.notifyAll();
+		}
+	}
+	@Override
+	public List<Runnable> shutdownNow() {
+		final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+		synchronized (mLock) {
+			mShutdown = true;
+			for (Lane lane : mLanes) {
+				for (PendingTask each : lane.mTasks) {
+					tasks.add(each.mRunnable);
+				}
+				lane.mTasks.clear();
+			}
+			mLock.notifyAll();
+		}
+		return tasks;
+	}
+	@Override
+	public boolean isShutdown() {
+		synchronized (mLock) {
+			return mShutdown;
+		}
+	}
+	@Override
+	public boolean isTerminated() {
+		synchronized (mLock) {
+			return mShutdown && mThreadCount == 0;
+		}
+	}
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		final long deadline = SystemClock.uptimeMillis() + unit.toMillis(timeout);
+		synchronized (mLock) {
+			while (mShutdown == false || mThreadCount > 0) {
+				final long remaining = deadline - SystemClock.uptimeMillis();
+				if (remaining <= 0)
+					return false;
+
+				mLock.wait(remaining);
+			}
+			return true;
+		}
+	}
+
+	// ### 实现函数 ###
+	private void startWorker() {
+		assert Thread.holdsLock(mLock);
+
+		++mThreadCount;
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				workCore();
+			}
+		}, mName + "-" + (++mThreadSerial));
+		thread.start();
+	}
+	private void workCore() {
+		int threadPriority = Process.THREAD_PRIORITY_DEFAULT;
+		while (true) {
+			final Lane lane;
+			final PendingTask task;
+			synchronized (mLock) {
+				long idleSince = SystemClock.uptimeMillis();
+				while (true) {
+					final Lane next = nextLane();
+					if (next != null) {
+						lane = next;
+						task = next.mTasks.poll();
+						break;
+					}
+
+					final long idleTime = SystemClock.uptimeMillis() - idleSince;
+					if (mShutdown || (mThreadCount > mCoreSize && idleTime >= KEEP_ALIVE)) {
+						--mThreadCount;
+						mLock.notifyAll();
+						return;
+					}
+
+					++mIdleCount;
+					try {
+						mLock.wait(mThreadCount > mCoreSize ? KEEP_ALIVE - idleTime : 0);
+					} catch (InterruptedException e) {
+
+					} finally {
+						--mIdleCount;
+					}
+				}
+
+				final long waitTime = SystemClock.uptimeMillis() - task.mSubmitTime;
+				++lane.mStartedCount;
+				lane.mTotalWaitTime += waitTime;
+				lane.mMaxWaitTime = Math.max(lane.mMaxWaitTime, waitTime);
+			}
+
+			if (threadPriority != lane.mThreadPriority) {
+				threadPriority = lane.mThreadPriority;
+				Process.setThreadPriority(threadPriority);
+			}
+
+			try {
+				task.mRunnable.run();
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	private int queuedTaskCount() {
+		assert Thread.holdsLock(mLock);
+
+		int count = 0;
+		for (Lane each : mLanes) {
+			count += each.mTasks.size();
+		}
+		return count;
+	}
+	private Lane nextLane() {
+		for (Lane each : mLanes) {
+			if (each.mTasks.isEmpty() == false)
+				return each;
+		}
+		return null;
+	}
+
+	// ### 内嵌类 ###
+	private static class Lane {
+		public final int mThreadPriority;
+		public final ArrayDeque<PendingTask> mTasks = new ArrayDeque<PendingTask>();
+		public long mStartedCount = 0;
+		public long mTotalWaitTime = 0;
+		public long mMaxWaitTime = 0;
+		public long mRejectedCount = 0;
+
+		public Lane(int threadPriority) {
+			mThreadPriority = threadPriority;
+		}
+	}
+	private static class PendingTask {
+		public final Runnable mRunnable;
+		public final long mSubmitTime;
+
+		public PendingTask(Runnable runnable, long submitTime) {
+			mRunnable = runnable;
+			mSubmitTime = submitTime;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package com.common.sys;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * PooledThread延时任务使用的哈希时间轮. 时间按TICK_MILLIS划分为刻度, 每个刻度对应一个槽, 槽中是双向链表,
+ * 添加和取消都是O(1), 取消后立即从槽中移除. 到期时间超过一圈的定时器按到期刻度留在槽中, 转到对应的圈数才触发.
+ *
+ * 到期动作在定时器线程上执行, 只应做把任务交给线程池之类的简单工作. 定时器最多比预定时间晚一个刻度触发.
+ * 定时器线程直接睡到最近的到期刻度, 不会每个刻度都醒来; 没有定时器时无限期等待.
+ */
+final class TimerWheel {
+	private static final long TICK_MILLIS = 10;
+	private static final int WHEEL_SIZE = 512;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final long NOT_WAITING = 0;
+	private static final long WAIT_FOREVER = Long.MAX_VALUE;
+	private final Object mLock = new Object();
+	private final Timeout[] mSlots = new Timeout[WHEEL_SIZE];
+	private final long mStartTime = SystemClock.uptimeMillis();
+	private final Thread mThread;
+	// 已经处理完的最后一个刻度
+	private long mProcessedTick = 0;
+	private int mTimeoutCount = 0;
+	// 定时器线程正在等待的刻度, 新的定时器更早到期时需要唤醒它
+	private long mWakeupTick = NOT_WAITING;
+
+	// ### 构造函数 ###
+	public TimerWheel(String name) {
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				tickCore();
+			}
+		}, name);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	// ### 属性 ###
+	public boolean isTimerThread() {
+		return Thread.currentThread() == mThread;
+	}
+	public int getTimeoutCount() {
+		synchronized (mLock) {
+			return mTimeoutCount;
+		}
+	}
+
+	// ### 方法 ###
+	public Timeout schedule(Runnable action, long delayMillis) {
+		final Timeout timeout = new Timeout(action);
+		synchronized (mLock) {
+			final long now = SystemClock.uptimeMillis() - mStartTime;
+			if (mTimeoutCount == 0) {
+				// 空闲期间定时器线程没有推进刻度, 直接跳到当前刻度
+				mProcessedTick = Math.max(mProcessedTick, now / TICK_MILLIS);
+			}
+			// 向上取整, 保证不会提前触发
+			final long elapsed = now + Math.max(0, delayMillis);
+			timeout.mDeadlineTick = Math.max(mProcessedTick + 1, (elapsed + TICK_MILLIS - 1) / TICK_MILLIS);
+			link(timeout);
+			if (timeout.mDeadlineTick < mWakeupTick) {
+				// 定时器线程等待的时间过长(或者在无限期等待), 唤醒它重新计算
+				mLock.notify();
+			}
+		}
+		return timeout;
+	}
+	// 返回false表示定时器已经触发或已经取消
+	public boolean cancel(Timeout timeout) {
+		synchronized (mLock) {
+			if (timeout.mScheduled == false)
+				return false;
+
+			unlink(timeout);
+			return true;
+		}
+	}
+
+	// ### 实现函数 ###
+	private void tickCore() {
+		final ArrayList<Timeout> expired = new ArrayList<Timeout>();
+		while (true) {
+			synchronized (mLock) {
+				final long currentTick = (SystemClock.uptimeMillis() - mStartTime) / TICK_MILLIS;
+				// 睡眠中跳过的刻度超过一圈时, 每个槽只需要检查一次
+				long tick = Math.max(mProcessedTick, currentTick - WHEEL_SIZE);
+				while (tick < currentTick && mTimeoutCount > 0) {
+					++tick;
+					expireSlot(tick, expired);
+				}
+				mProcessedTick = Math.max(mProcessedTick, currentTick);
+
+				if (expired.isEmpty()) try {
+					mWakeupTick = mTimeoutCount > 0 ? nextDeadlineTick() : WAIT_FOREVER;
+					if (mWakeupTick == WAIT_FOREVER) {
+						mLock.wait();
+					} else {
+						final long wakeupTime = mStartTime + mWakeupTick * TICK_MILLIS;
+						mLock.wait(Math.max(1, wakeupTime - SystemClock.uptimeMillis()));
+					}
+					continue;
+				} catch (InterruptedException e) {
+					continue;
+				} finally {
+					mWakeupTick = NOT_WAITING;
+				}
+			}
+
+			// 出锁后再执行到期动作
+			for (int n = 0; n < expired.size(); ++n) {
+				try {
+					expired.get(n).mAction.run();
+				} catch (Throwable e) {
+					e.printStackTrace();
+				}
+			}
+			expired.clear();
+		}
+	}
+	private void expireSlot(long tick, ArrayList<Timeout> expired) {
+		// 槽中新添加的在前, 从尾部向前遍历, 同一刻度的定时器按添加顺序触发
+		Timeout each = mSlots[(int) (tick & WHEEL_MASK)];
+		while (each != null && each.mNext != null) {
+			each = each.mNext;
+		}
+		while (each != null) {
+			final Timeout prev = each.mPrev;
+			if (each.mDeadlineTick <= tick) {
+				unlink(each);
+				expired.add(each);
+			}
+			each = prev;
+		}
+	}
+	// 从下一个刻度开始找第一个有定时器到期的槽; 一圈之内都没有时, 已经看过所有定时器, 返回其中最早的到期刻度.
+	private long nextDeadlineTick() {
+		long earliestTick = WAIT_FOREVER;
+		for (long tick = mProcessedTick + 1; tick <= mProcessedTick + WHEEL_SIZE; ++tick) {
+			for (Timeout each = mSlots[(int) (tick & WHEEL_MASK)]; each != null; each = each.mNext) {
+				if (each.mDeadlineTick <= tick)
+					return tick;
+
+				earliestTick = Math.min(earliestTick, each.mDeadlineTick);
+			}
+		}
+		return earliestTick;
+	}
+	private void link(Timeout timeout) {
+		final int slot = (int) (timeout.mDeadlineTick & WHEEL_MASK);
+		timeout.mPrev = null;
+		timeout.mNext = mSlots[slot];
+		if (timeout.mNext != null) {
+			timeout.mNext.mPrev = timeout;
+		}
+		mSlots[slot] = timeout;
+		timeout.mScheduled = true;
+		++mTimeoutCount;
+	}
+	private void unlink(Timeout timeout) {
+		final int slot = (int) (timeout.mDeadlineTick & WHEEL_MASK);
+		if (timeout.mPrev != null) {
+			timeout.mPrev.mNext = timeout.mNext;
+		} else {
+			mSlots[slot] = timeout.mNext;
+		}
+		if (timeout.mNext != null) {
+			timeout.mNext.mPrev = timeout.mPrev;
+		}
+		timeout.mPrev = null;
+		timeout.mNext = null;
+		timeout.mScheduled = false;
+		--mTimeoutCount;
+	}
+
+	// ### 内嵌类 ###
+	public static final class Timeout {
+		private final Runnable mAction;
+		private long mDeadlineTick;
+		private boolean mScheduled = false;
+		private Timeout mPrev = null;
+		private Timeout mNext = null;
+
+		private Timeout(Runnable action) {
+			mAction = action;
+		}
+	}
+}
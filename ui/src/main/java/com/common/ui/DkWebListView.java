@@ -837,6 +837,9 @@ public class DkWebListView extends FrameLayout implements Scrollable {
 		public final int listItemCount() {
 			return (listState() == ListState.UNKOWN || listState() == ListState.EMPTY) ? 0 : mBaseAdapter.getItemCount();
 		}
+		private final boolean showsItems() {
+			return mBaseAdapter != null && listState() != ListState.UNKOWN && listState() != ListState.EMPTY;
+		}
 		public final ListState listState() {
 			if (mBaseAdapter == null)
 				return ListState.UNKOWN;
@@ -959,11 +962,24 @@ public class DkWebListView extends FrameLayout implements Scrollable {
 		}
 		@Override
 		public void onItemsAdded(int addCount, int addTo) {
-			onItemsChanged(getItemCount());
+			if (showsItems() == false) {
+				onItemsChanged(getItemCount());
+				return;
+			}
+
+			// 只更新受影响的条目, 不重建所有可见条目
+			notifyItemsAdded(addCount, addTo);
+			DkWebListView.this.onItemsChanged(getItemCount());
 		}
 		@Override
 		public void onItemsRemoved(int removeFrom, int removeCount) {
-			onItemsChanged(getItemCount());
+			if (showsItems() == false) {
+				onItemsChanged(getItemCount());
+				return;
+			}
+
+			notifyItemsRemoved(removeFrom, removeCount);
+			DkWebListView.this.onItemsChanged(getItemCount());
 		}
 		@Override
 		public final void onItemsMoved(int moveFrom, int moveCount, int moveTo) {
@@ -971,7 +987,12 @@ public class DkWebListView extends FrameLayout implements Scrollable {
 		}
 		@Override
 		public final void onItemsModified(int modifyFrom, int modifyCount) {
-			onItemsChanged(getItemCount());
+			if (showsItems() == false) {
+				onItemsChanged(getItemCount());
+				return;
+			}
+
+			notifyItemsModified(modifyFrom, modifyCount);
 		}
 		@Override
 		public final void onItemsChanged(int itemCount) {
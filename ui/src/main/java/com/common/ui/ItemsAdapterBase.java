@@ -11,9 +11,9 @@ public abstract class ItemsAdapterBase implements ItemsAdapter {
 	private final LinkedList<ItemsObserver> mObserverList = new LinkedList<ItemsObserver>();
 	
 	// ### 方法 ###
-	public void notifyItemsAdded(int addTo, int addCount) {
+	public void notifyItemsAdded(int addCount, int addTo) {
 		for (ItemsObserver observer : mObserverList) {
-			observer.onItemsAdded(addTo, addCount);
+			observer.onItemsAdded(addCount, addTo);
 		}
 	}
 	public void notifyItemsRemoved(int removeFrom, int removeCount) {